@@ -0,0 +1,257 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.DataSet;
+import dk.dbc.ticklerepo.dto.DataSetSummary;
+import dk.dbc.ticklerepo.dto.IngestResult;
+import dk.dbc.ticklerepo.dto.Record;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Asynchronous facade of {@link TickleRepo}, for composing many independent
+ * operations without a blocked thread per operation in the caller.
+ * <p>
+ * Every operation runs in a resource-local transaction of its own, on an
+ * entity manager of its own, so this facade is meant for use outside of a
+ * Jakarta EE container, with a persistence unit of transaction type
+ * RESOURCE_LOCAL. Entities returned are detached.
+ * </p>
+ * <p>
+ * Operations run on virtual threads when the JVM supports them (Java 21
+ * and later), otherwise on a pool of platform threads. Either way at most
+ * maxConcurrency operations hold a database connection at any time, the
+ * rest wait for their turn without occupying a platform thread, when
+ * running on virtual threads.
+ * </p>
+ */
+public class AsyncTickleRepo implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncTickleRepo.class);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 10;
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final DataSource dataSource;
+    private final Semaphore permits;
+    private final ExecutorService ownExecutor;
+    private final Executor executor;
+
+    /**
+     * @param entityManagerFactory factory of entity managers for a resource-local persistence unit
+     * @param dataSource           data source of the persistence unit, required by operations
+     *                             using connections of their own, may be null otherwise
+     * @param maxConcurrency       maximum number of operations running at a time
+     */
+    public AsyncTickleRepo(EntityManagerFactory entityManagerFactory, DataSource dataSource, int maxConcurrency) {
+        this(entityManagerFactory, dataSource, maxConcurrency, null);
+    }
+
+    /**
+     * @param entityManagerFactory factory of entity managers for a resource-local persistence unit
+     * @param dataSource           data source of the persistence unit, required by operations
+     *                             using connections of their own, may be null otherwise
+     * @param maxConcurrency       maximum number of operations running at a time
+     * @param executor             executor running the operations, or null to use
+     *                             virtual threads if available
+     */
+    public AsyncTickleRepo(EntityManagerFactory entityManagerFactory, DataSource dataSource, int maxConcurrency,
+                           Executor executor) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Max concurrency must be positive, was " + maxConcurrency);
+        }
+        this.entityManagerFactory = entityManagerFactory;
+        this.dataSource = dataSource;
+        this.permits = new Semaphore(maxConcurrency, true);
+        if (executor == null) {
+            ownExecutor = newExecutor(maxConcurrency);
+            this.executor = ownExecutor;
+        } else {
+            ownExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Runs given operation in a transaction of its own.
+     * <p>
+     * The transaction is committed if the operation returns,
+     * and rolled back if it throws.
+     * </p>
+     *
+     * @param operation operation
+     * @param <T>       type of result
+     * @return future completed with the result of the operation,
+     * or exceptionally with the exception thrown by the operation
+     */
+    public <T> CompletableFuture<T> submit(Function<TickleRepo, T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return inTransaction(operation);
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * See {@link TickleRepo#createBatch(Batch)}
+     */
+    public CompletableFuture<Batch> createBatch(Batch batch) {
+        return submit(tickleRepo -> tickleRepo.createBatch(batch));
+    }
+
+    /**
+     * See {@link TickleRepo#closeBatch(Batch)}
+     */
+    public CompletableFuture<Batch> closeBatch(Batch batch) {
+        return submit(tickleRepo -> tickleRepo.closeBatch(batch));
+    }
+
+    /**
+     * See {@link TickleRepo#abortBatch(Batch)}
+     */
+    public CompletableFuture<Batch> abortBatch(Batch batch) {
+        return submit(tickleRepo -> tickleRepo.abortBatch(batch));
+    }
+
+    /**
+     * See {@link TickleRepo#getNextBatch(Batch)}
+     */
+    public CompletableFuture<Optional<Batch>> getNextBatch(Batch lastSeenBatch) {
+        return submit(tickleRepo -> tickleRepo.getNextBatch(lastSeenBatch));
+    }
+
+    /**
+     * See {@link TickleRepo#ingestRecords(Batch, Iterable)}
+     */
+    public CompletableFuture<IngestResult> ingestRecords(Batch batch, Iterable<Record> records) {
+        return submit(tickleRepo -> tickleRepo.ingestRecords(batch, records));
+    }
+
+    /**
+     * See {@link TickleRepo#lookupBatch(Batch, boolean)}, lookups are read-only
+     */
+    public CompletableFuture<Optional<Batch>> lookupBatch(Batch value) {
+        return submit(tickleRepo -> tickleRepo.lookupBatch(value, true));
+    }
+
+    /**
+     * See {@link TickleRepo#lookupRecord(Record)}
+     */
+    public CompletableFuture<Optional<Record>> lookupRecord(Record value) {
+        return submit(tickleRepo -> tickleRepo.lookupRecord(value));
+    }
+
+    /**
+     * See {@link TickleRepo#lookupRecords(int, List)}
+     */
+    public CompletableFuture<List<Record>> lookupRecords(int dataset, List<String> localIds) {
+        return submit(tickleRepo -> tickleRepo.lookupRecords(dataset, localIds));
+    }
+
+    /**
+     * See {@link TickleRepo#lookupDataSet(DataSet)}
+     */
+    public CompletableFuture<Optional<DataSet>> lookupDataSet(DataSet dataSet) {
+        return submit(tickleRepo -> tickleRepo.lookupDataSet(dataSet));
+    }
+
+    /**
+     * See {@link TickleRepo#getDataSetSummary()}
+     */
+    public CompletableFuture<List<DataSetSummary>> getDataSetSummary() {
+        return submit(TickleRepo::getDataSetSummary);
+    }
+
+    /**
+     * See {@link TickleRepo#getDataSetSummaryByDataSetId(int)}
+     */
+    public CompletableFuture<DataSetSummary> getDataSetSummaryByDataSetId(int dataSetId) {
+        return submit(tickleRepo -> tickleRepo.getDataSetSummaryByDataSetId(dataSetId));
+    }
+
+    /**
+     * See {@link TickleRepo#estimateSizeOf(DataSet)}
+     */
+    public CompletableFuture<Integer> estimateSizeOf(DataSet dataSet) {
+        return submit(tickleRepo -> tickleRepo.estimateSizeOf(dataSet));
+    }
+
+    /**
+     * See {@link TickleRepo#sizeOf(DataSet)}
+     */
+    public CompletableFuture<Integer> sizeOf(DataSet dataSet) {
+        return submit(tickleRepo -> tickleRepo.sizeOf(dataSet));
+    }
+
+    /**
+     * Stops accepting operations, operations already submitted are completed.
+     * An executor given at construction is left running.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private <T> T inTransaction(Function<TickleRepo, T> operation) {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final EntityTransaction transaction = entityManager.getTransaction();
+            transaction.begin();
+            try {
+                final T result = operation.apply(new TickleRepo(entityManager, dataSource));
+                transaction.commit();
+                return result;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /* Compiled for Java 11, virtual threads are looked up reflectively */
+    private static ExecutorService newExecutor(int maxConcurrency) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("Virtual threads not supported, running on {} platform threads", maxConcurrency);
+            final AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+                final Thread thread = new Thread(runnable, "tickle-repo-async-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Batch;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+
+/**
+ * Cache of completed batches by ID and by batch key
+ * <p>
+ * A batch is effectively immutable once completed, so cached batches are
+ * never invalidated. They do however expire, bounding the time a batch
+ * deleted from the database may still be served.
+ * </p>
+ * <p>
+ * Cached batches are never handed out, only copies of them.
+ * </p>
+ */
+class BatchCache {
+    static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(1);
+
+    private final LruCache<Integer, Batch> byId;
+    private final LruCache<Integer, Batch> byKey;
+
+    BatchCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    BatchCache(int maximumSize, Duration timeToLive) {
+        byId = new LruCache<>(maximumSize, timeToLive);
+        byKey = new LruCache<>(maximumSize, timeToLive);
+    }
+
+    Batch getById(int id) {
+        return copyOf(byId.get(id));
+    }
+
+    Batch getByKey(int batchKey) {
+        return copyOf(byKey.get(batchKey));
+    }
+
+    /**
+     * Caches given batch if it is completed
+     * <p>
+     * Only batches whose completion is committed may be cached.
+     * </p>
+     *
+     * @param batch batch
+     * @return given batch
+     */
+    Batch putIfCompleted(Batch batch) {
+        if (batch != null && batch.getTimeOfCompletion() != null) {
+            final Batch copy = copyOf(batch);
+            byId.put(copy.getId(), copy);
+            byKey.put(copy.getBatchKey(), copy);
+        }
+        return batch;
+    }
+
+    CacheStatistics getStatistics() {
+        return byId.getStatistics().plus(byKey.getStatistics());
+    }
+
+    static Batch copyOf(Batch batch) {
+        if (batch == null) {
+            return null;
+        }
+        return new Batch()
+                .withId(batch.getId())
+                .withDataset(batch.getDataset())
+                .withBatchKey(batch.getBatchKey())
+                .withType(batch.getType())
+                .withSweepMode(batch.getSweepMode())
+                .withTimeOfCreation(copyOf(batch.getTimeOfCreation()))
+                .withTimeOfCompletion(copyOf(batch.getTimeOfCompletion()))
+                .withMetadata(batch.getMetadata());
+    }
+
+    private static Timestamp copyOf(Timestamp timestamp) {
+        return timestamp != null ? (Timestamp) timestamp.clone() : null;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Batch;
+
+/**
+ * Receiver of batch completions, see {@link BatchCompletionNotifier}
+ */
+@FunctionalInterface
+public interface BatchCompletionListener {
+    /**
+     * Called when a batch has been completed, that is closed or aborted,
+     * and the completing transaction has been committed.
+     *
+     * @param batch completed batch
+     */
+    void batchCompleted(Batch batch);
+
+    /**
+     * Called when notifications resume after the connection listening for
+     * them was lost. Batches completed while the connection was down are not
+     * delivered, use {@link TickleRepo#getNextBatch(Batch)} to catch up.
+     */
+    default void notificationsResumed() {}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.BatchTypeConverter;
+import dk.dbc.ticklerepo.dto.SweepModeConverter;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers batches to listeners as they are completed, replacing polling
+ * of {@link TickleRepo#getNextBatch(Batch)}.
+ * <p>
+ * Completions are signalled by a PostgreSQL NOTIFY sent by a trigger on the
+ * batch table, so batches completed by any writer are delivered, and only once
+ * the completing transaction has committed. A dedicated connection taken from
+ * the DataSource listens for notifications on a daemon thread, which also
+ * invokes the listeners, one notification at a time.
+ * </p>
+ * <p>
+ * Notifications are not persistent, batches completed while no connection
+ * is listening are never delivered. A listener should therefore catch up using
+ * {@link TickleRepo#getNextBatch(Batch)} after subscribing and whenever
+ * {@link BatchCompletionListener#notificationsResumed()} is called.
+ * </p>
+ */
+public class BatchCompletionNotifier implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchCompletionNotifier.class);
+
+    static final String CHANNEL = "batch_completed";
+    private static final String GET_BATCH_QUERY = "SELECT * FROM batch WHERE id = ?";
+    private static final int POLL_TIMEOUT_IN_MS = 500;
+    private static final long RECONNECT_DELAY_IN_MS = 5000;
+
+    private final DataSource dataSource;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final BatchTypeConverter batchTypeConverter = new BatchTypeConverter();
+    private final SweepModeConverter sweepModeConverter = new SweepModeConverter();
+
+    private volatile boolean closed;
+    private Thread thread;
+    private Connection connection;
+
+    public BatchCompletionNotifier(DataSource dataSource) {
+        if (dataSource == null) {
+            throw new IllegalStateException("Batch completion notifications require a DataSource");
+        }
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Subscribes given listener to completions of batches in all datasets
+     *
+     * @param listener listener
+     * @return this BatchCompletionNotifier
+     */
+    public BatchCompletionNotifier subscribe(BatchCompletionListener listener) {
+        subscriptions.add(new Subscription(null, listener));
+        return this;
+    }
+
+    /**
+     * Subscribes given listener to completions of batches in given dataset
+     *
+     * @param dataset  ID of dataset
+     * @param listener listener
+     * @return this BatchCompletionNotifier
+     */
+    public BatchCompletionNotifier subscribe(int dataset, BatchCompletionListener listener) {
+        subscriptions.add(new Subscription(dataset, listener));
+        return this;
+    }
+
+    public BatchCompletionNotifier unsubscribe(BatchCompletionListener listener) {
+        subscriptions.removeIf(subscription -> subscription.listener == listener);
+        return this;
+    }
+
+    /**
+     * Starts listening for batch completions.
+     * <p>
+     * The connection is established before this method returns,
+     * so any batch completed afterwards is delivered.
+     * </p>
+     *
+     * @return this BatchCompletionNotifier
+     * @throws SQLException if unable to listen for notifications
+     */
+    public synchronized BatchCompletionNotifier start() throws SQLException {
+        if (closed) {
+            throw new IllegalStateException("Notifier is closed");
+        }
+        if (thread == null) {
+            connection = listen();
+            thread = new Thread(this::run, "tickle-repo-batch-completion-notifier");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Stops listening for batch completions and releases the connection
+     */
+    @Override
+    public void close() {
+        final Thread runningThread;
+        synchronized (this) {
+            closed = true;
+            runningThread = thread;
+        }
+        if (runningThread != null && runningThread != Thread.currentThread()) {
+            try {
+                runningThread.join(POLL_TIMEOUT_IN_MS * 4L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                try {
+                    if (connection == null) {
+                        connection = listen();
+                        notifyResumed();
+                    }
+                    final PGNotification[] notifications = connection.unwrap(PGConnection.class)
+                            .getNotifications(POLL_TIMEOUT_IN_MS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            try {
+                                dispatch(notification);
+                            } catch (RuntimeException e) {
+                                LOGGER.error("Unable to dispatch batch completion notification '{}'",
+                                        notification.getParameter(), e);
+                            }
+                        }
+                    }
+                } catch (SQLException e) {
+                    LOGGER.error("Listening for batch completions failed, reconnecting in {} ms",
+                            RECONNECT_DELAY_IN_MS, e);
+                    release();
+                    Thread.sleep(RECONNECT_DELAY_IN_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            release();
+        }
+    }
+
+    private Connection listen() throws SQLException {
+        final Connection listening = dataSource.getConnection();
+        try (Statement statement = listening.createStatement()) {
+            listening.setAutoCommit(true);
+            statement.execute("LISTEN " + CHANNEL);
+        } catch (SQLException e) {
+            listening.close();
+            throw e;
+        }
+        return listening;
+    }
+
+    private void release() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to release connection listening for batch completions", e);
+            }
+            connection = null;
+        }
+    }
+
+    private void dispatch(PGNotification notification) throws SQLException {
+        if (!CHANNEL.equals(notification.getName())) {
+            return;
+        }
+        // Payload is '<batch id>,<dataset id>', the dataset ID is empty for batches without one
+        final String[] payload = notification.getParameter().split(",", -1);
+        final int batchId;
+        final Integer dataset;
+        try {
+            batchId = Integer.parseInt(payload[0]);
+            dataset = payload.length > 1 && !payload[1].isEmpty() ? Integer.valueOf(payload[1]) : null;
+        } catch (NumberFormatException e) {
+            LOGGER.error("Ignoring malformed batch completion notification '{}'", notification.getParameter());
+            return;
+        }
+        Batch batch = null;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(dataset)) {
+                if (batch == null) {
+                    batch = getBatch(batchId);
+                    if (batch == null) {
+                        // Deleted since completion
+                        return;
+                    }
+                }
+                try {
+                    subscription.listener.batchCompleted(batch);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Listener failed on completion of batch {}", batch, e);
+                }
+            }
+        }
+    }
+
+    private void notifyResumed() {
+        for (Subscription subscription : subscriptions) {
+            try {
+                subscription.listener.notificationsResumed();
+            } catch (RuntimeException e) {
+                LOGGER.error("Listener failed on resumption of notifications", e);
+            }
+        }
+    }
+
+    private Batch getBatch(int batchId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_BATCH_QUERY)) {
+            statement.setInt(1, batchId);
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Batch()
+                        .withId(resultSet.getInt("ID"))
+                        .withDataset(resultSet.getInt("DATASET"))
+                        .withBatchKey(resultSet.getInt("BATCHKEY"))
+                        .withType(batchTypeConverter.convertToEntityAttribute(resultSet.getString("TYPE")))
+                        .withSweepMode(sweepModeConverter.convertToEntityAttribute(resultSet.getString("SWEEPMODE")))
+                        .withTimeOfCreation(resultSet.getTimestamp("TIMEOFCREATION"))
+                        .withTimeOfCompletion(resultSet.getTimestamp("TIMEOFCOMPLETION"))
+                        .withMetadata(resultSet.getString("METADATA"));
+            }
+        }
+    }
+
+    private static class Subscription {
+        private final Integer dataset;
+        private final BatchCompletionListener listener;
+
+        Subscription(Integer dataset, BatchCompletionListener listener) {
+            this.dataset = dataset;
+            this.listener = listener;
+        }
+
+        boolean matches(Integer dataset) {
+            return this.dataset == null || this.dataset.equals(dataset);
+        }
+    }
+}
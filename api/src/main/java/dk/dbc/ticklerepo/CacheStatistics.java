@@ -0,0 +1,63 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+/**
+ * Snapshot of the counters of a lookup cache
+ */
+public class CacheStatistics {
+    private final long hits;
+    private final long misses;
+    private final int size;
+
+    public CacheStatistics(long hits, long misses, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.size = size;
+    }
+
+    /**
+     * @return number of lookups served from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups going to the database
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of entries currently cached
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return fraction of lookups served from the cache, 0 if no lookups were made
+     */
+    public double getHitRatio() {
+        final long lookups = hits + misses;
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    CacheStatistics plus(CacheStatistics other) {
+        return new CacheStatistics(hits + other.hits, misses + other.misses, size + other.size);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", size=" + size +
+                '}';
+    }
+}
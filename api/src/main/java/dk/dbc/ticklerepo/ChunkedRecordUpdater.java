@@ -0,0 +1,143 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import jakarta.persistence.PersistenceException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes bulk updates of records in a dataset one record ID range at a time,
+ * committing each range separately.
+ * <p>
+ * Ranges are found by walking the (dataset, id) index, so every chunk covers
+ * at most {@link ChunkedUpdate#getChunkSize()} records of the dataset regardless
+ * of their status, and every record of the dataset existing when the update
+ * started is covered by exactly one chunk. The sum of rows affected by all
+ * chunks therefore equals that of the corresponding single statement update.
+ * </p>
+ */
+class ChunkedRecordUpdater {
+    static final String MARK = "UPDATE record SET status = 'RESET'" +
+            " WHERE dataset = ? AND status = 'ACTIVE'";
+    static final String UNDO_MARK = "UPDATE record SET status = 'ACTIVE'" +
+            " WHERE dataset = ? AND status = 'RESET'";
+    static final String SWEEP = "UPDATE record SET batch = ?, status = 'DELETED', timeOfLastModification = ?, checksum = ''" +
+            " WHERE dataset = ? AND status = 'RESET'";
+    static final String SWEEP_GENERATION = "UPDATE record SET batch = ?, status = 'DELETED', timeOfLastModification = ?, checksum = ''" +
+            " WHERE dataset = ? AND status <> 'DELETED' AND (generation IS NULL OR generation < ?)";
+
+    /* Deleted records are kept as tombstones referencing the shared empty
+       content, releasing their own content for purgeRecordContent */
+    static final String STRIP_DELETED = "UPDATE record SET content = ''::bytea, contentCodec = 'NONE'" +
+            " WHERE dataset = ? AND status = 'DELETED' AND timeOfLastModification < ?" +
+            " AND (contentDigest IS NULL OR contentDigest <> md5(''::bytea))";
+    static final String PURGE_DELETED = "DELETE FROM record" +
+            " WHERE dataset = ? AND status = 'DELETED' AND timeOfLastModification < ?";
+
+    /* Rewriting the content has the record_content_store trigger move it */
+    static final String MOVE_CONTENT = "UPDATE record SET content = content" +
+            " WHERE dataset = ? AND contentDigest IS NULL";
+
+    private static final String RANGE_CONDITION = " AND id > ? AND id <= ?";
+
+    private static final String GET_CHUNK_UPPER_BOUND =
+            "SELECT id FROM record WHERE dataset = ? AND id > ? ORDER BY id OFFSET ? LIMIT 1";
+    private static final String GET_LAST_ID =
+            "SELECT max(id) FROM record WHERE dataset = ? AND id > ?";
+
+    private final DataSource dataSource;
+    private final ChunkedUpdate settings;
+
+    ChunkedRecordUpdater(DataSource dataSource, ChunkedUpdate settings) {
+        if (dataSource == null) {
+            throw new IllegalStateException("Chunked updates require a DataSource");
+        }
+        this.dataSource = dataSource;
+        this.settings = settings;
+    }
+
+    /**
+     * Runs update in chunks
+     *
+     * @param operation  name of operation reported in progress
+     * @param dataset    ID of dataset to update
+     * @param updateSql  UPDATE or DELETE statement restricted to the dataset,
+     *                   to which an ID range condition is appended
+     * @param parameters positional parameters of given statement
+     * @return total number of rows affected
+     * @throws PersistenceException on failure, chunks already processed remain committed
+     */
+    long run(String operation, int dataset, String updateSql, Object... parameters) throws PersistenceException {
+        final long startTime = System.nanoTime();
+        long rowsTotal = 0;
+        int chunks = 0;
+        int lowerBound = 0;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement getChunkUpperBound = connection.prepareStatement(GET_CHUNK_UPPER_BOUND);
+             PreparedStatement getLastId = connection.prepareStatement(GET_LAST_ID);
+             PreparedStatement update = connection.prepareStatement(updateSql + RANGE_CONDITION)) {
+            connection.setAutoCommit(true);
+            getChunkUpperBound.setInt(1, dataset);
+            getChunkUpperBound.setInt(3, settings.getChunkSize() - 1);
+            getLastId.setInt(1, dataset);
+            for (int i = 0; i < parameters.length; i++) {
+                update.setObject(i + 1, parameters[i]);
+            }
+            Integer upperBound;
+            while ((upperBound = getUpperBound(getChunkUpperBound, getLastId, lowerBound)) != null) {
+                update.setInt(parameters.length + 1, lowerBound);
+                update.setInt(parameters.length + 2, upperBound);
+                final int rowsInChunk = update.executeUpdate();
+                rowsTotal += rowsInChunk;
+                chunks++;
+                lowerBound = upperBound;
+                settings.getProgressListener().accept(new ChunkedUpdate.Progress(
+                        operation, dataset, chunks, rowsInChunk, rowsTotal, lowerBound));
+                throttle(startTime, rowsTotal);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+        return rowsTotal;
+    }
+
+    private Integer getUpperBound(PreparedStatement getChunkUpperBound, PreparedStatement getLastId,
+                                  int lowerBound) throws SQLException {
+        getChunkUpperBound.setInt(2, lowerBound);
+        try (java.sql.ResultSet resultSet = getChunkUpperBound.executeQuery()) {
+            if (resultSet.next()) {
+                return resultSet.getInt(1);
+            }
+        }
+        // Less than a full chunk remains
+        getLastId.setInt(2, lowerBound);
+        try (java.sql.ResultSet resultSet = getLastId.executeQuery()) {
+            resultSet.next();
+            final int lastId = resultSet.getInt(1);
+            return resultSet.wasNull() ? null : lastId;
+        }
+    }
+
+    private void throttle(long startTime, long rowsTotal) {
+        if (settings.getMaxRowsPerSecond() > 0) {
+            final long earliestNanos = TimeUnit.SECONDS.toNanos(rowsTotal) / settings.getMaxRowsPerSecond();
+            final long aheadNanos = earliestNanos - (System.nanoTime() - startTime);
+            if (aheadNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PersistenceException("Interrupted while throttling chunked update", e);
+                }
+            }
+        }
+    }
+}
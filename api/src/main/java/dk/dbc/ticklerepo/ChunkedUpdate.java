@@ -0,0 +1,140 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.util.function.Consumer;
+
+/**
+ * Settings for bulk record updates processed in chunks of bounded record ID
+ * ranges, each chunk committed in its own transaction.
+ * <p>
+ * Chunked updates trade atomicity for shorter row locks, smaller WAL bursts
+ * and less replication lag: should an update fail midway, the chunks already
+ * processed remain committed.
+ * </p>
+ */
+public class ChunkedUpdate {
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxRowsPerSecond = 0;
+    private Consumer<Progress> progressListener = progress -> {};
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize maximum number of records in a chunk
+     * @return this ChunkedUpdate
+     */
+    public ChunkedUpdate withChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, was " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    /**
+     * @param maxRowsPerSecond upper limit on the rate of updated rows,
+     *                         zero or less means no limit
+     * @return this ChunkedUpdate
+     */
+    public ChunkedUpdate withMaxRowsPerSecond(int maxRowsPerSecond) {
+        this.maxRowsPerSecond = Math.max(maxRowsPerSecond, 0);
+        return this;
+    }
+
+    public Consumer<Progress> getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * @param progressListener listener notified after each committed chunk
+     * @return this ChunkedUpdate
+     */
+    public ChunkedUpdate withProgressListener(Consumer<Progress> progressListener) {
+        this.progressListener = progressListener != null ? progressListener : progress -> {};
+        return this;
+    }
+
+    /**
+     * Progress of a chunked update after a committed chunk
+     */
+    public static class Progress {
+        private final String operation;
+        private final int dataset;
+        private final int chunks;
+        private final int rowsInChunk;
+        private final long rowsTotal;
+        private final int lastId;
+
+        Progress(String operation, int dataset, int chunks, int rowsInChunk, long rowsTotal, int lastId) {
+            this.operation = operation;
+            this.dataset = dataset;
+            this.chunks = chunks;
+            this.rowsInChunk = rowsInChunk;
+            this.rowsTotal = rowsTotal;
+            this.lastId = lastId;
+        }
+
+        /**
+         * @return name of update operation, for example mark or sweep
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        public int getDataset() {
+            return dataset;
+        }
+
+        /**
+         * @return number of chunks committed so far
+         */
+        public int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return number of rows updated by latest chunk
+         */
+        public int getRowsInChunk() {
+            return rowsInChunk;
+        }
+
+        /**
+         * @return number of rows updated so far
+         */
+        public long getRowsTotal() {
+            return rowsTotal;
+        }
+
+        /**
+         * @return upper bound of record ID range covered so far
+         */
+        public int getLastId() {
+            return lastId;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{" +
+                    "operation='" + operation + '\'' +
+                    ", dataset=" + dataset +
+                    ", chunks=" + chunks +
+                    ", rowsInChunk=" + rowsInChunk +
+                    ", rowsTotal=" + rowsTotal +
+                    ", lastId=" + lastId +
+                    '}';
+        }
+    }
+}
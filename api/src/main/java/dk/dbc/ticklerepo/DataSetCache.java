@@ -0,0 +1,142 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.DataSet;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache of dataset IDs by name and by submitter
+ * <p>
+ * Every change to the dataset table, made by any node, increments the
+ * version kept in the dataset_version table. The cache is emptied whenever
+ * it sees a new version, which it checks for at most once per maximum
+ * staleness interval.
+ * </p>
+ * <p>
+ * Only IDs are cached, since the cache outlives the persistence contexts
+ * the datasets were loaded in. Datasets are then found by ID through the
+ * entity manager, which serves them as managed entities from its persistence
+ * context or the shared cache of the persistence unit.
+ * </p>
+ */
+class DataSetCache {
+    static final int DEFAULT_MAXIMUM_SIZE = 1000;
+    static final Duration DEFAULT_MAXIMUM_STALENESS = Duration.ofSeconds(5);
+
+    private final LruCache<String, Integer> byName;
+    private final LruCache<Integer, List<Integer>> bySubmitter;
+    private final long maximumStalenessInNanos;
+
+    private long version = -1;
+    private long timeOfVersionCheck;
+
+    DataSetCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_STALENESS);
+    }
+
+    /**
+     * @param maximumSize       maximum number of entries in each of the name and submitter caches
+     * @param maximumStaleness  maximum time between checks for changes made by other nodes
+     */
+    DataSetCache(int maximumSize, Duration maximumStaleness) {
+        byName = new LruCache<>(maximumSize);
+        bySubmitter = new LruCache<>(maximumSize);
+        maximumStalenessInNanos = maximumStaleness.toNanos();
+    }
+
+    /**
+     * Empties the cache if the dataset version has changed since last checked
+     *
+     * @param currentVersion supplier of the current dataset version, only called
+     *                       if the maximum staleness interval has passed
+     */
+    void validate(LongSupplier currentVersion) {
+        final long checkedVersion;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (version >= 0 && now - timeOfVersionCheck < maximumStalenessInNanos) {
+                return;
+            }
+            // Claims the check, other threads keep using the cache meanwhile
+            timeOfVersionCheck = now;
+            checkedVersion = version;
+        }
+        // Outside of the lock, lookups are not to wait for the database
+        final long latestVersion = currentVersion.getAsLong();
+        synchronized (this) {
+            // Unless invalidated or checked by another thread in the meantime
+            if (version == checkedVersion && latestVersion != version) {
+                clear();
+                version = latestVersion;
+            }
+        }
+    }
+
+    /**
+     * Empties the cache and forces a version check on next validation
+     */
+    synchronized void invalidate() {
+        clear();
+        version = -1;
+    }
+
+    /**
+     * @param name name of dataset
+     * @return ID of dataset, or null on cache miss
+     */
+    Integer getIdByName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @param dataSet dataset to cache the ID of by name
+     * @return given dataset
+     */
+    DataSet putByName(DataSet dataSet) {
+        if (dataSet.getName() != null) {
+            byName.put(dataSet.getName(), dataSet.getId());
+        }
+        return dataSet;
+    }
+
+    /**
+     * @param submitter agency ID of submitter
+     * @return IDs of datasets of submitter, or null on cache miss
+     */
+    List<Integer> getIdsBySubmitter(int submitter) {
+        return bySubmitter.get(submitter);
+    }
+
+    /**
+     * @param submitter agency ID of submitter
+     * @param dataSets  datasets of submitter to cache the IDs of
+     * @return given datasets
+     */
+    List<DataSet> putBySubmitter(int submitter, List<DataSet> dataSets) {
+        final List<Integer> ids = new ArrayList<>(dataSets.size());
+        for (DataSet dataSet : dataSets) {
+            ids.add(dataSet.getId());
+        }
+        bySubmitter.put(submitter, Collections.unmodifiableList(ids));
+        return dataSets;
+    }
+
+    CacheStatistics getStatistics() {
+        return byName.getStatistics()
+                .plus(bySubmitter.getStatistics());
+    }
+
+    private void clear() {
+        byName.clear();
+        bySubmitter.clear();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache evicting the least recently used entry, counting hits and misses
+ * <p>
+ * Entries optionally expire a fixed time after being put.
+ * </p>
+ */
+class LruCache<K, V> {
+    private final Map<K, CachedValue<V>> entries;
+    private final long timeToLiveInNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    LruCache(int maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param maximumSize maximum number of entries
+     * @param timeToLive  time after which an entry expires, null for never
+     */
+    LruCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive, was " + maximumSize);
+        }
+        entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        timeToLiveInNanos = timeToLive != null ? timeToLive.toNanos() : 0;
+    }
+
+    /**
+     * @param key key
+     * @return cached value, or null on cache miss
+     */
+    synchronized V get(K key) {
+        CachedValue<V> entry = entries.get(key);
+        if (entry != null && timeToLiveInNanos > 0 && System.nanoTime() - entry.timeOfPut >= timeToLiveInNanos) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, new CachedValue<>(value, System.nanoTime()));
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), size());
+    }
+
+    private static class CachedValue<V> {
+        private final V value;
+        private final long timeOfPut;
+
+        CachedValue(V value, long timeOfPut) {
+            this.value = value;
+            this.timeOfPut = timeOfPut;
+        }
+    }
+}
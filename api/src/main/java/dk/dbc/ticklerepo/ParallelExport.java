@@ -0,0 +1,96 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Settings for exporting the records of a dataset in partitions read in
+ * parallel, each on its own database connection.
+ * <p>
+ * All partitions read the same snapshot of the dataset, so the export is
+ * consistent as if read by a single transaction.
+ * </p>
+ */
+public class ParallelExport {
+    public static final int DEFAULT_PARTITIONS = 4;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    public enum Partitioning {
+        /**
+         * Partitions are consecutive ranges of equal width between
+         * the lowest and highest record ID in the dataset
+         */
+        ID_RANGE,
+        /**
+         * Partitions are given by a hash of the record local ID,
+         * every partition scans the entire dataset
+         */
+        LOCAL_ID_HASH
+    }
+
+    private int partitions = DEFAULT_PARTITIONS;
+    private Partitioning partitioning = Partitioning.ID_RANGE;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private Executor executor;
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param partitions number of partitions read in parallel
+     * @return this ParallelExport
+     */
+    public ParallelExport withPartitions(int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Number of partitions must be positive, was " + partitions);
+        }
+        this.partitions = partitions;
+        return this;
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    public ParallelExport withPartitioning(Partitioning partitioning) {
+        this.partitioning = partitioning != null ? partitioning : Partitioning.ID_RANGE;
+        return this;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @param fetchSize number of records fetched from the database at a time per partition
+     * @return this ParallelExport
+     */
+    public ParallelExport withFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("Fetch size must be positive, was " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor executor running the partitions, typically a managed executor
+     *                 service in a container, required. Partitions not given a thread
+     *                 of their own wait for others to finish, while the snapshot
+     *                 shared by all partitions is kept open.
+     * @return this ParallelExport
+     */
+    public ParallelExport withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+}
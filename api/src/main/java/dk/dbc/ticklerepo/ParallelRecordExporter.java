@@ -0,0 +1,244 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Record;
+import jakarta.persistence.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports the records of a dataset in partitions read in parallel.
+ * <p>
+ * A coordinating transaction exports its snapshot, which every partition
+ * transaction imports before reading. The coordinating transaction is kept
+ * open until all partitions are done.
+ * </p>
+ */
+class ParallelRecordExporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelRecordExporter.class);
+
+    private static final String EXPORT_SNAPSHOT = "SELECT pg_export_snapshot()";
+    private static final String GET_ID_RANGE = "SELECT min(id), max(id) FROM record WHERE dataset = ?";
+    private static final String GET_RECORDS_IN_ID_RANGE = TickleRepo.RecordMapping.SELECT_RECORDS +
+            " WHERE record.dataset = ? AND record.id >= ? AND record.id < ? ORDER BY record.id";
+    private static final String GET_RECORDS_IN_LOCAL_ID_HASH_PARTITION = TickleRepo.RecordMapping.SELECT_RECORDS +
+            " WHERE record.dataset = ? AND (hashtext(record.localId) & 2147483647) % ? = ? ORDER BY record.id";
+
+    private final DataSource dataSource;
+    private final ParallelExport settings;
+
+    ParallelRecordExporter(DataSource dataSource, ParallelExport settings) {
+        if (dataSource == null) {
+            throw new IllegalStateException("Parallel export requires a DataSource");
+        }
+        if (settings.getExecutor() == null) {
+            throw new IllegalArgumentException("Parallel export requires an executor");
+        }
+        this.dataSource = dataSource;
+        this.settings = settings;
+    }
+
+    /**
+     * Starts export
+     *
+     * @param dataset ID of dataset to export
+     * @param sink    receiver of exported records
+     * @return future completed with the total number of records exported,
+     * or exceptionally if any partition failed
+     */
+    CompletableFuture<Long> export(int dataset, RecordSink sink) {
+        final Connection coordinator;
+        final String snapshot;
+        final long[][] idRanges;
+        try {
+            coordinator = dataSource.getConnection();
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(new PersistenceException(e));
+        }
+        try {
+            coordinator.setAutoCommit(false);
+            coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            snapshot = exportSnapshot(coordinator);
+            idRanges = settings.getPartitioning() == ParallelExport.Partitioning.ID_RANGE
+                    ? getIdRanges(coordinator, dataset) : null;
+        } catch (SQLException | RuntimeException e) {
+            release(coordinator);
+            return CompletableFuture.failedFuture(e instanceof SQLException ? new PersistenceException(e) : e);
+        }
+
+        final int partitions = idRanges != null ? idRanges.length : settings.getPartitions();
+        final Executor executor = settings.getExecutor();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        final List<CompletableFuture<Long>> futures = new ArrayList<>(partitions);
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return exportPartition(dataset, partition, idRanges, snapshot, sink, failed);
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }, executor));
+            }
+        } catch (RejectedExecutionException e) {
+            // Partitions already submitted stop at their next check of the failed
+            // flag, the snapshot they import is only released once they are done
+            failed.set(true);
+            final CompletableFuture<Long> rejected = CompletableFuture.failedFuture(e);
+            if (futures.isEmpty()) {
+                release(coordinator);
+                return rejected;
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .handle((ignore, failure) -> {
+                        release(coordinator);
+                        return null;
+                    })
+                    .thenCompose(ignore -> rejected);
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignore -> {
+                    long total = 0;
+                    for (CompletableFuture<Long> future : futures) {
+                        total += future.join();
+                    }
+                    return total;
+                })
+                .whenComplete((total, e) -> {
+                    release(coordinator);
+                    if (e != null) {
+                        LOGGER.error("Export of dataset {} failed", dataset, e);
+                    } else {
+                        LOGGER.info("{} records exported from dataset {} in {} partitions", total, dataset, partitions);
+                    }
+                });
+    }
+
+    private long exportPartition(int dataset, int partition, long[][] idRanges, String snapshot,
+                                 RecordSink sink, AtomicBoolean failed) {
+        final TickleRepo.RecordMapping recordMapping = new TickleRepo.RecordMapping();
+        long records = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            final int isolation = connection.getTransactionIsolation();
+            try {
+                connection.setAutoCommit(false);
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                try (Statement statement = connection.createStatement()) {
+                    // Must be the first statement of the transaction
+                    statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+                }
+                try (PreparedStatement statement = prepareStatement(connection, dataset, partition, idRanges)) {
+                    statement.setFetchSize(settings.getFetchSize());
+                    try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (failed.get()) {
+                                throw new PersistenceException("Export of partition " + partition +
+                                        " abandoned, another partition failed");
+                            }
+                            final Record record = recordMapping.apply(resultSet);
+                            sink.accept(partition, record);
+                            records++;
+                        }
+                    }
+                }
+            } finally {
+                // Nothing to commit, ending the transaction either way
+                connection.rollback();
+                connection.setTransactionIsolation(isolation);
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+        sink.partitionCompleted(partition, records);
+        return records;
+    }
+
+    private PreparedStatement prepareStatement(Connection connection, int dataset, int partition,
+                                               long[][] idRanges) throws SQLException {
+        final PreparedStatement statement;
+        if (idRanges != null) {
+            statement = connection.prepareStatement(GET_RECORDS_IN_ID_RANGE);
+            statement.setInt(1, dataset);
+            statement.setLong(2, idRanges[partition][0]);
+            statement.setLong(3, idRanges[partition][1]);
+        } else {
+            statement = connection.prepareStatement(GET_RECORDS_IN_LOCAL_ID_HASH_PARTITION);
+            statement.setInt(1, dataset);
+            statement.setInt(2, settings.getPartitions());
+            statement.setInt(3, partition);
+        }
+        return statement;
+    }
+
+    private static String exportSnapshot(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             java.sql.ResultSet resultSet = statement.executeQuery(EXPORT_SNAPSHOT)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    /* Returns [from, to) ID ranges of equal width, or no ranges at all
+       for an empty dataset */
+    private long[][] getIdRanges(Connection connection, int dataset) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_ID_RANGE)) {
+            statement.setInt(1, dataset);
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                final long min = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    return new long[0][];
+                }
+                final long max = resultSet.getLong(2);
+                return splitIdRange(min, max, settings.getPartitions());
+            }
+        }
+    }
+
+    static long[][] splitIdRange(long min, long max, int partitions) {
+        final long ids = max - min + 1;
+        final long width = (ids + partitions - 1) / partitions;
+        final int numberOfRanges = (int) ((ids + width - 1) / width);
+        final long[][] ranges = new long[numberOfRanges][];
+        for (int i = 0; i < numberOfRanges; i++) {
+            final long from = min + i * width;
+            ranges[i] = new long[]{from, Math.min(from + width, max + 1)};
+        }
+        return ranges;
+    }
+
+    private static void release(Connection coordinator) {
+        try {
+            try {
+                coordinator.rollback();
+                coordinator.setAutoCommit(true);
+            } finally {
+                coordinator.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Unable to release coordinating connection of export", e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+
+/**
+ * Reads rows in the PostgreSQL binary COPY format
+ * (see https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4),
+ * the counterpart of {@link PgBinaryCopyWriter}
+ * <p>
+ * Closing the reader closes the underlying stream.
+ * </p>
+ */
+class PgBinaryCopyReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 65536;
+    private static final LocalDateTime POSTGRES_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+
+    private final DataInputStream in;
+
+    PgBinaryCopyReader(InputStream inputStream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        final byte[] signature = new byte[PgBinaryCopyWriter.SIGNATURE.length];
+        in.readFully(signature);
+        if (!Arrays.equals(signature, PgBinaryCopyWriter.SIGNATURE)) {
+            throw new IOException("Not in PostgreSQL binary COPY format");
+        }
+        in.readInt();       // flags field
+        in.readFully(new byte[in.readInt()]);   // header extension area
+    }
+
+    /**
+     * @return number of fields in the next row, or -1 if no more rows remain
+     * @throws IOException on failure to read
+     */
+    int startRow() throws IOException {
+        return in.readShort();
+    }
+
+    /**
+     * @return value of integer field, 0 if NULL
+     * @throws IOException on failure to read
+     */
+    int readInt() throws IOException {
+        if (readLength(Integer.BYTES) < 0) {
+            return 0;
+        }
+        return in.readInt();
+    }
+
+    /**
+     * @return value of bigint field, 0 if NULL
+     * @throws IOException on failure to read
+     */
+    long readLong() throws IOException {
+        if (readLength(Long.BYTES) < 0) {
+            return 0;
+        }
+        return in.readLong();
+    }
+
+    String readText() throws IOException {
+        final byte[] value = readBytes();
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    byte[] readBytes() throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Reads timestamp without time zone field, interpreted in the
+     * default time zone like {@link java.sql.ResultSet#getTimestamp(String)}
+     *
+     * @return value of timestamp field
+     * @throws IOException on failure to read
+     */
+    Timestamp readTimestamp() throws IOException {
+        if (readLength(Long.BYTES) < 0) {
+            return null;
+        }
+        return Timestamp.valueOf(POSTGRES_EPOCH.plus(in.readLong(), ChronoUnit.MICROS));
+    }
+
+    private int readLength(int expected) throws IOException {
+        final int length = in.readInt();
+        if (length >= 0 && length != expected) {
+            throw new IOException("Expected field of length " + expected + ", was " + length);
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
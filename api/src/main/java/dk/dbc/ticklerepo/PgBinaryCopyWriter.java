@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rows in the PostgreSQL binary COPY format
+ * (see https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4)
+ * <p>
+ * Closing the writer writes the file trailer and closes the underlying stream.
+ * </p>
+ */
+class PgBinaryCopyWriter implements AutoCloseable {
+    static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final DataOutputStream out;
+
+    PgBinaryCopyWriter(OutputStream outputStream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        out.write(SIGNATURE);
+        out.writeInt(0);    // flags field
+        out.writeInt(0);    // header extension area length
+    }
+
+    PgBinaryCopyWriter startRow(int numberOfFields) throws IOException {
+        out.writeShort(numberOfFields);
+        return this;
+    }
+
+    PgBinaryCopyWriter writeInt(int value) throws IOException {
+        out.writeInt(Integer.BYTES);
+        out.writeInt(value);
+        return this;
+    }
+
+    PgBinaryCopyWriter writeLong(long value) throws IOException {
+        out.writeInt(Long.BYTES);
+        out.writeLong(value);
+        return this;
+    }
+
+    PgBinaryCopyWriter writeText(String value) throws IOException {
+        if (value == null) {
+            return writeNull();
+        }
+        return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    PgBinaryCopyWriter writeBytes(byte[] value) throws IOException {
+        if (value == null) {
+            return writeNull();
+        }
+        out.writeInt(value.length);
+        out.write(value);
+        return this;
+    }
+
+    PgBinaryCopyWriter writeNull() throws IOException {
+        out.writeInt(-1);
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.writeShort(-1);
+        out.close();
+    }
+}
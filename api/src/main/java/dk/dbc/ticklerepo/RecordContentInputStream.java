@@ -0,0 +1,175 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Reads the content of a record, as stored, in slices of bounded size
+ * <p>
+ * PostgreSQL returns bytea values in one piece, so the content is read
+ * one substring at a time, each by a query of its own, keeping no more
+ * than a single slice in memory. Slices are read on demand, on the
+ * connection given, which must remain open until the stream is closed.
+ * </p>
+ * <p>
+ * Each slice query sees a snapshot of its own, so slices are never read
+ * from the record itself, which may be updated between them. Shared content
+ * is read from its record_content row by digest, a row never changing once
+ * written, and content kept in the record itself is read from a record row
+ * locked by the caller until the transaction ends.
+ * </p>
+ */
+class RecordContentInputStream extends InputStream {
+    static final int DEFAULT_SLICE_SIZE = 1024 * 1024;
+
+    private static final String GET_SHARED_CONTENT_SLICE =
+            "SELECT substring(data FROM ? FOR ?) FROM record_content WHERE digest = ?";
+    private static final String GET_RECORD_CONTENT_SLICE =
+            "SELECT substring(content FROM ? FOR ?) FROM record WHERE id = ?";
+
+    private final PreparedStatement statement;
+    private final long length;
+
+    private byte[] slice = new byte[0];
+    private int position;
+    private long offset;
+    private boolean closed;
+
+    /**
+     * Reads shared content by digest, the record_content row must be locked
+     * against purging, FOR KEY SHARE, until the stream is closed
+     * @param connection connection to read content through
+     * @param digest     digest of content
+     * @param length     length of stored content in bytes
+     * @param sliceSize  maximum number of bytes read at a time
+     * @return new stream
+     * @throws SQLException on failure to prepare statement
+     */
+    static RecordContentInputStream ofSharedContent(Connection connection, String digest, long length, int sliceSize)
+            throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(GET_SHARED_CONTENT_SLICE);
+        statement.setString(3, digest);
+        return new RecordContentInputStream(statement, length, sliceSize);
+    }
+
+    /**
+     * Reads content kept in the record itself, the record row must be locked
+     * against updates, FOR SHARE, until the stream is closed
+     * @param connection connection to read content through
+     * @param recordId   ID of record
+     * @param length     length of stored content in bytes
+     * @param sliceSize  maximum number of bytes read at a time
+     * @return new stream
+     * @throws SQLException on failure to prepare statement
+     */
+    static RecordContentInputStream ofRecordContent(Connection connection, int recordId, long length, int sliceSize)
+            throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(GET_RECORD_CONTENT_SLICE);
+        statement.setInt(3, recordId);
+        return new RecordContentInputStream(statement, length, sliceSize);
+    }
+
+    private RecordContentInputStream(PreparedStatement statement, long length, int sliceSize) throws SQLException {
+        this.statement = statement;
+        this.statement.setInt(2, sliceSize);
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return slice[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, slice.length - position);
+        System.arraycopy(slice, position, buffer, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (n <= 0) {
+            return 0;
+        }
+        final int inSlice = slice.length - position;
+        if (n <= inSlice) {
+            position += (int) n;
+            return n;
+        }
+        // Slices skipped over entirely are never read
+        final long skipped = Math.min(n, inSlice + length - offset);
+        offset += skipped - inSlice;
+        slice = new byte[0];
+        position = 0;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return slice.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            slice = new byte[0];
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /* Returns true if there is at least one unread byte in the current slice */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (position < slice.length) {
+            return true;
+        }
+        if (offset >= length) {
+            return false;
+        }
+        try {
+            // substring positions are one based, bytea values at most 1 GB
+            statement.setInt(1, Math.toIntExact(offset + 1));
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                final byte[] next = resultSet.next() ? resultSet.getBytes(1) : null;
+                if (next == null || next.length == 0) {
+                    throw new IOException("Content of record ended after " + offset + " of " + length + " bytes");
+                }
+                slice = next;
+                position = 0;
+                offset += next.length;
+                return true;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
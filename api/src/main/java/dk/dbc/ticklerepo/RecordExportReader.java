@@ -0,0 +1,125 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.ContentCodec;
+import dk.dbc.ticklerepo.dto.ContentCodecConverter;
+import dk.dbc.ticklerepo.dto.Record;
+import dk.dbc.ticklerepo.dto.RecordStatusConverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decodes records exported by {@link TickleRepo#exportRecordsInBatch(dk.dbc.ticklerepo.dto.Batch, java.io.OutputStream)}
+ * or {@link TickleRepo#exportRecordsInDataSet(dk.dbc.ticklerepo.dto.DataSet, java.io.OutputStream)}
+ * <p>
+ * Like {@link TickleRepo.ResultSet} the records can only be iterated once.
+ * Content is kept as exported, that is encoded by the content codec of the
+ * record, and only decoded when {@link Record#getContent()} is called.
+ * </p>
+ */
+public class RecordExportReader implements Iterable<Record>, AutoCloseable {
+    /* Fields in the order selected by TickleRepo.EXPORT_RECORDS_QUERY */
+    static final int NUMBER_OF_FIELDS = 12;
+
+    private final PgBinaryCopyReader reader;
+    private final RecordStatusConverter recordStatusConverter = new RecordStatusConverter();
+    private final ContentCodecConverter contentCodecConverter = new ContentCodecConverter();
+
+    private Record nextRecord;
+    private boolean exhausted;
+
+    /**
+     * @param inputStream stream of exported records, closed when this reader is closed
+     * @throws IOException if the stream is not in the PostgreSQL binary COPY format
+     */
+    public RecordExportReader(InputStream inputStream) throws IOException {
+        reader = new PgBinaryCopyReader(inputStream);
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            @Override
+            public boolean hasNext() {
+                return peek();
+            }
+
+            @Override
+            public Record next() {
+                if (!peek()) {
+                    throw new NoSuchElementException();
+                }
+                final Record record = nextRecord;
+                nextRecord = null;
+                return record;
+            }
+        };
+    }
+
+    /**
+     * @return sequential stream over the records, closing the stream closes this reader
+     */
+    public Stream<Record> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean peek() {
+        if (nextRecord == null && !exhausted) {
+            try {
+                nextRecord = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            exhausted = nextRecord == null;
+        }
+        return nextRecord != null;
+    }
+
+    private Record readRecord() throws IOException {
+        final int numberOfFields = reader.startRow();
+        if (numberOfFields < 0) {
+            return null;
+        }
+        if (numberOfFields != NUMBER_OF_FIELDS) {
+            throw new IOException("Expected " + NUMBER_OF_FIELDS + " fields in row, was " + numberOfFields);
+        }
+        final Record record = new Record()
+                .withId(reader.readInt())
+                .withBatch(reader.readInt())
+                .withDataset(reader.readInt())
+                .withLocalId(reader.readText())
+                .withTrackingId(reader.readText())
+                .withStatus(recordStatusConverter.convertToEntityAttribute(reader.readText()))
+                .withGeneration(reader.readInt())
+                .withTimeOfCreation(reader.readTimestamp())
+                .withTimeOfLastModification(reader.readTimestamp());
+        final byte[] storedContent = reader.readBytes();
+        final ContentCodec contentCodec = contentCodecConverter.convertToEntityAttribute(reader.readText());
+        return record
+                .withStoredContent(storedContent, contentCodec)
+                .withChecksum(reader.readText());
+    }
+}
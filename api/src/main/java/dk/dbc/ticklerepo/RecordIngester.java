@@ -0,0 +1,192 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.ContentCodec;
+import dk.dbc.ticklerepo.dto.IngestResult;
+import dk.dbc.ticklerepo.dto.Record;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Bulk upsert of records streamed through PostgreSQL COPY into a
+ * transaction local staging table and merged into the record table
+ * by a single INSERT ... ON CONFLICT statement.
+ */
+class RecordIngester {
+    private static final String CREATE_STAGING_TABLE =
+            "CREATE TEMPORARY TABLE record_ingest (" +
+                    " seq BIGINT NOT NULL," +
+                    " localId TEXT NOT NULL," +
+                    " trackingId TEXT NOT NULL," +
+                    " status TEXT NOT NULL," +
+                    " content BYTEA NOT NULL," +
+                    " contentCodec TEXT NOT NULL," +
+                    " checksum TEXT NOT NULL" +
+                    ") ON COMMIT DROP";
+
+    private static final String COPY_TO_STAGING_TABLE =
+            "COPY record_ingest (seq, localId, trackingId, status, content, contentCodec, checksum) FROM STDIN (FORMAT binary)";
+
+    private static final String DROP_STAGING_TABLE = "DROP TABLE record_ingest";
+
+    /* All CTEs see the same snapshot, so the classification reflects
+       the state of the data set before the merge took place.
+       Records delivered more than once only have their last occurrence
+       merged, since ON CONFLICT DO UPDATE can not touch a row twice.
+       Content is kept as is when the checksum is unchanged. Otherwise
+       EXCLUDED holds the content as moved to record_content by the
+       record_content_store trigger, hence contentDigest is taken from it.
+       The trigger fires for every row proposed for insertion, also those
+       ending up in the DO UPDATE branch, so unchanged records propose the
+       digest already stored instead of their content, sparing it from
+       being hashed and compared. Records still holding their content
+       inline propose it as before, satisfying record_content_or_digest_check.
+       Every ingested record is considered seen by the batch, see
+       Batch.SweepMode.GENERATION. */
+    private static final String MERGE =
+            "WITH ingest AS (" +
+            "  SELECT DISTINCT ON (localId) localId, trackingId, status, content, contentCodec, checksum" +
+            "  FROM record_ingest ORDER BY localId, seq DESC" +
+            "), classified AS (" +
+            "  SELECT ingest.*, record.contentDigest AS storedDigest," +
+            "         record.id IS NULL AS isNew," +
+            "         record.checksum IS DISTINCT FROM ingest.checksum AS isModified" +
+            "  FROM ingest LEFT JOIN record ON record.dataset = ? AND record.localId = ingest.localId" +
+            "), merged AS (" +
+            "  INSERT INTO record (batch, generation, dataset, localId, trackingId, status, timeOfLastModification, content, contentDigest, contentCodec, checksum)" +
+            "  SELECT ?, ?, ?, localId, trackingId, status::record_status, ?," +
+            "         CASE WHEN isModified OR storedDigest IS NULL THEN content END," +
+            "         CASE WHEN NOT isModified THEN storedDigest END," +
+            "         contentCodec::content_codec, checksum FROM classified" +
+            "  ON CONFLICT (dataset, localId) DO UPDATE SET" +
+            "   batch = CASE WHEN record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "           THEN EXCLUDED.batch ELSE record.batch END," +
+            "   content = CASE WHEN record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "             THEN EXCLUDED.content ELSE record.content END," +
+            "   contentDigest = CASE WHEN record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "                   THEN EXCLUDED.contentDigest ELSE record.contentDigest END," +
+            "   contentCodec = CASE WHEN record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "                  THEN EXCLUDED.contentCodec ELSE record.contentCodec END," +
+            "   checksum = EXCLUDED.checksum," +
+            "   trackingId = EXCLUDED.trackingId," +
+            "   status = EXCLUDED.status," +
+            "   generation = EXCLUDED.generation," +
+            "   timeOfLastModification = CASE WHEN record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "                              OR record.status IS DISTINCT FROM EXCLUDED.status" +
+            "                              OR record.trackingId IS DISTINCT FROM EXCLUDED.trackingId" +
+            "                            THEN EXCLUDED.timeOfLastModification ELSE record.timeOfLastModification END" +
+            "  WHERE record.checksum IS DISTINCT FROM EXCLUDED.checksum" +
+            "     OR record.status IS DISTINCT FROM EXCLUDED.status" +
+            "     OR record.trackingId IS DISTINCT FROM EXCLUDED.trackingId" +
+            "     OR record.generation IS DISTINCT FROM EXCLUDED.generation" +
+            "  RETURNING 1" +
+            ")" +
+            " SELECT count(*) FILTER (WHERE isNew)," +
+            "        count(*) FILTER (WHERE NOT isNew AND isModified)," +
+            "        count(*) FILTER (WHERE NOT isNew AND NOT isModified)" +
+            " FROM classified";
+
+    private final Connection connection;
+    private final ContentCodec contentCodec;
+
+    /**
+     * @param connection   connection in scope of a transaction
+     * @param contentCodec codec used for content not already encoded
+     */
+    RecordIngester(Connection connection, ContentCodec contentCodec) {
+        this.connection = connection;
+        this.contentCodec = contentCodec;
+    }
+
+    IngestResult ingest(Batch batch, Iterable<Record> records) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_STAGING_TABLE);
+        }
+        final IngestResult result;
+        try {
+            copyToStagingTable(records);
+            result = merge(batch);
+        } catch (SQLException | RuntimeException e) {
+            // So that the ingest can be retried in the same transaction,
+            // a transaction aborted by the failure drops the table on rollback
+            try {
+                dropStagingTable();
+            } catch (SQLException dropFailure) {
+                e.addSuppressed(dropFailure);
+            }
+            throw e;
+        }
+        dropStagingTable();
+        return result;
+    }
+
+    private void dropStagingTable() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(DROP_STAGING_TABLE);
+        }
+    }
+
+    private void copyToStagingTable(Iterable<Record> records) throws SQLException {
+        final PGCopyOutputStream copyStream = new PGCopyOutputStream(
+                connection.unwrap(PGConnection.class), COPY_TO_STAGING_TABLE);
+        // Not try-with-resources, closing the writer would complete
+        // the COPY operation, also on failure.
+        try {
+            final PgBinaryCopyWriter writer = new PgBinaryCopyWriter(copyStream);
+            long seq = 0;
+            for (Record record : records) {
+                final boolean isEncoded = record.getContentCodec() != ContentCodec.NONE;
+                writer.startRow(7)
+                        .writeLong(seq++)
+                        .writeText(record.getLocalId())
+                        .writeText(record.getTrackingId())
+                        .writeText(record.getStatus() != null ? record.getStatus().name() : null)
+                        .writeBytes(isEncoded ? record.getStoredContent() : contentCodec.encode(record.getStoredContent()))
+                        .writeText(isEncoded ? record.getContentCodec().name() : contentCodec.name())
+                        .writeText(record.getChecksum());
+            }
+            writer.close();
+        } catch (IOException e) {
+            cancel(copyStream);
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e);
+        } catch (RuntimeException e) {
+            cancel(copyStream);
+            throw e;
+        }
+    }
+
+    private static void cancel(PGCopyOutputStream copyStream) throws SQLException {
+        if (copyStream.isActive()) {
+            copyStream.cancelCopy();
+        }
+    }
+
+    private IngestResult merge(Batch batch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(MERGE)) {
+            statement.setInt(1, batch.getDataset());
+            statement.setInt(2, batch.getId());
+            statement.setInt(3, batch.getId());
+            statement.setInt(4, batch.getDataset());
+            statement.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return new IngestResult(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3));
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Record;
+import jakarta.persistence.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the records selected by a query, reading them through a database
+ * cursor of its own as they are requested.
+ * <p>
+ * Every subscription opens a cursor on a connection of its own, taken from the
+ * data source when the first records are requested, and closed again when the
+ * last record has been published, on failure or when the subscription is
+ * cancelled. Rows are fetched from the database in windows sized by the
+ * outstanding demand, capped at {@link #MAX_FETCH_SIZE}, so no more than that
+ * many records are held in memory per subscription however far behind the
+ * subscriber is.
+ * </p>
+ * <p>
+ * Subscribers are signalled from the executor of the publisher, one signal at
+ * a time, on which the cursor is also read.
+ * </p>
+ */
+class RecordPublisher implements Flow.Publisher<Record> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordPublisher.class);
+
+    static final int MAX_FETCH_SIZE = 1000;
+
+    static final String GET_RECORDS_IN_BATCH = TickleRepo.RecordMapping.SELECT_RECORDS +
+            " WHERE record.batch = ? ORDER BY record.id";
+    static final String GET_RECORDS_IN_DATASET = TickleRepo.RecordMapping.SELECT_RECORDS +
+            " WHERE record.dataset = ? ORDER BY record.id";
+
+    private final DataSource dataSource;
+    private final String operation;
+    private final String query;
+    private final int parameter;
+    private final Executor executor;
+
+    /**
+     * @param dataSource data source of the connections read from
+     * @param operation  name of operation, for metrics
+     * @param query      SQL query selecting records, with a single integer parameter
+     * @param parameter  value of query parameter
+     * @param executor   executor reading the cursor and signalling subscribers
+     */
+    RecordPublisher(DataSource dataSource, String operation, String query, int parameter, Executor executor) {
+        if (dataSource == null) {
+            throw new IllegalStateException("Publishing records requires a DataSource");
+        }
+        this.dataSource = dataSource;
+        this.operation = operation;
+        this.query = query;
+        this.parameter = parameter;
+        this.executor = Objects.requireNonNull(executor, "executor");
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Record> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        final RecordSubscription subscription = new RecordSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class RecordSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Record> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        /* Only accessed from drain() */
+        private final TickleRepo.RecordMapping recordMapping = new TickleRepo.RecordMapping();
+        private Connection connection;
+        private PreparedStatement statement;
+        private java.sql.ResultSet resultSet;
+        private boolean done;
+        private long rows;
+        private long timeOfExecution;
+
+        RecordSubscription(Flow.Subscriber<? super Record> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Number of records requested must be positive, was " + n);
+            } else {
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /* Requests and cancellation may arrive from any thread, including from
+           within onNext, the cursor is only ever touched by a single drain */
+        private void schedule() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    cancelled = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    try {
+                        publish();
+                    } catch (SQLException | RuntimeException e) {
+                        fail(e instanceof SQLException ? new PersistenceException(e) : e);
+                    }
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void publish() throws SQLException {
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (invalidRequest != null) {
+                fail(invalidRequest);
+                return;
+            }
+            final long requested = demand.get();
+            if (requested == 0) {
+                return;
+            }
+            final int fetchSize = (int) Math.min(requested, MAX_FETCH_SIZE);
+            if (resultSet == null) {
+                open(fetchSize);
+            } else {
+                resultSet.setFetchSize(fetchSize);
+            }
+            long published = 0;
+            while (published < requested) {
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+                if (!resultSet.next()) {
+                    finish();
+                    subscriber.onComplete();
+                    return;
+                }
+                final Record record = recordMapping.apply(resultSet);
+                rows++;
+                published++;
+                subscriber.onNext(record);
+            }
+            demand.addAndGet(-published);
+        }
+
+        private void open(int fetchSize) throws SQLException {
+            timeOfExecution = System.nanoTime();
+            connection = dataSource.getConnection();
+            // Cursors are only used by the driver inside of a transaction
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(query);
+            statement.setFetchSize(fetchSize);
+            statement.setInt(1, parameter);
+            LOGGER.debug("{} [{}]", query, parameter);
+            resultSet = statement.executeQuery();
+        }
+
+        private void fail(Throwable failure) {
+            finish();
+            subscriber.onError(failure);
+        }
+
+        private void finish() {
+            done = true;
+            if (connection == null) {
+                return;
+            }
+            final TickleRepoMetrics metrics = TickleRepo.getMetrics();
+            if (metrics != TickleRepoMetrics.NONE) {
+                metrics.cursorClosed(operation, System.nanoTime() - timeOfExecution);
+                metrics.recordsStreamed(operation, rows, recordMapping.getContentBytes());
+            }
+            try {
+                try {
+                    if (resultSet != null) {
+                        resultSet.close();
+                    }
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    // Nothing to commit, ending the transaction either way
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                } finally {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to release connection of {}", operation, e);
+            }
+            resultSet = null;
+            statement = null;
+            connection = null;
+        }
+    }
+}
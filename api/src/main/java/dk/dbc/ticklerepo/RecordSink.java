@@ -0,0 +1,34 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.Record;
+
+/**
+ * Receiver of records exported in parallel partitions.
+ * <p>
+ * Different partitions call the sink concurrently, calls for the same
+ * partition are made from a single thread in record ID order.
+ * A runtime exception thrown by the sink fails the export.
+ * </p>
+ */
+@FunctionalInterface
+public interface RecordSink {
+    /**
+     * @param partition partition number, zero based
+     * @param record    exported record
+     */
+    void accept(int partition, Record record);
+
+    /**
+     * Called when all records of a partition have been passed to the sink
+     *
+     * @param partition partition number, zero based
+     * @param records   number of records in partition
+     */
+    default void partitionCompleted(int partition, long records) {
+    }
+}
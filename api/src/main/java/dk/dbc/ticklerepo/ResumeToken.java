@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a keyset paginated harvest of a data set.
+ * <p>
+ * Clients only ever see the encoded form, which must be treated as opaque.
+ * </p>
+ */
+class ResumeToken {
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = ":";
+
+    private final int dataSetId;
+    private final int lastSeenId;
+
+    ResumeToken(int dataSetId, int lastSeenId) {
+        this.dataSetId = dataSetId;
+        this.lastSeenId = lastSeenId;
+    }
+
+    int getDataSetId() {
+        return dataSetId;
+    }
+
+    int getLastSeenId() {
+        return lastSeenId;
+    }
+
+    String encode() {
+        final String token = String.join(SEPARATOR, VERSION,
+                String.valueOf(dataSetId), String.valueOf(lastSeenId));
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes resume token for given data set
+     *
+     * @param token     encoded token, null means start of data set
+     * @param dataSetId ID of data set being harvested
+     * @return decoded token
+     * @throws IllegalArgumentException if token is malformed or belongs to another data set
+     */
+    static ResumeToken decode(String token, int dataSetId) throws IllegalArgumentException {
+        if (token == null || token.isEmpty()) {
+            return new ResumeToken(dataSetId, 0);
+        }
+        final String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                    .split(SEPARATOR);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed resume token '" + token + "'", e);
+        }
+        if (parts.length != 3 || !VERSION.equals(parts[0])) {
+            throw new IllegalArgumentException("Malformed resume token '" + token + "'");
+        }
+        final ResumeToken resumeToken;
+        try {
+            resumeToken = new ResumeToken(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed resume token '" + token + "'", e);
+        }
+        if (resumeToken.dataSetId != dataSetId) {
+            throw new IllegalArgumentException("Resume token '" + token +
+                    "' does not belong to data set " + dataSetId);
+        }
+        return resumeToken;
+    }
+}
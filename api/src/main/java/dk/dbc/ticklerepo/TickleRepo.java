@@ -6,10 +6,19 @@
 package dk.dbc.ticklerepo;
 
 import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.ChecksumDiff;
+import dk.dbc.ticklerepo.dto.ContentCodec;
+import dk.dbc.ticklerepo.dto.ContentCodecConverter;
 import dk.dbc.ticklerepo.dto.DataSet;
 import dk.dbc.ticklerepo.dto.DataSetSummary;
+import dk.dbc.ticklerepo.dto.HarvestPage;
+import dk.dbc.ticklerepo.dto.IngestResult;
 import dk.dbc.ticklerepo.dto.Record;
+import dk.dbc.ticklerepo.dto.RecordContent;
+import dk.dbc.ticklerepo.dto.RecordHeader;
 import dk.dbc.ticklerepo.dto.RecordStatusConverter;
+import jakarta.annotation.Resource;
+import jakarta.ejb.SessionContext;
 import jakarta.ejb.Stateless;
 import jakarta.ejb.TransactionAttribute;
 import jakarta.ejb.TransactionAttributeType;
@@ -18,31 +27,57 @@ import jakarta.persistence.Parameter;
 import jakarta.persistence.PersistenceContext;
 import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Query;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
 import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.internal.jpa.EJBQueryImpl;
 import org.eclipse.persistence.jpa.JpaEntityManager;
 import org.eclipse.persistence.queries.DatabaseQuery;
 import org.eclipse.persistence.sessions.DatabaseRecord;
 import org.eclipse.persistence.sessions.Session;
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class contains the tickle repository API
@@ -50,279 +85,1572 @@ import java.util.regex.Pattern;
 @Stateless
 public class TickleRepo {
     private static final Logger LOGGER = LoggerFactory.getLogger(TickleRepo.class);
-    private static final int DATASET_SIZE_ESTIMATE_THRESHOLD = 1000000;
-
-    private static final String GET_DATASET_SUMMARY_QUERY = "SELECT NEW dk.dbc.ticklerepo.dto.DataSetSummary(d.name," +
-            " COUNT(r)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.ACTIVE THEN 1 ELSE 0 END)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.DELETED THEN 1 ELSE 0 END)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.RESET THEN 1 ELSE 0 END)," +
-            " MAX(r.timeOfLastModification), " +
-            " MAX(r.batch))" +
-            " FROM Record r, DataSet d" +
-            " WHERE d.id = r.dataset" +
-            " GROUP BY d.name";
-
-    private static final String GET_DATASET_SUMMARY_BY_DATASET_ID_QUERY = "SELECT NEW dk.dbc.ticklerepo.dto.DataSetSummary(d.name," +
-            " COUNT(1)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.ACTIVE THEN 1 ELSE 0 END)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.DELETED THEN 1 ELSE 0 END)," +
-            " SUM(CASE WHEN r.status = dk.dbc.ticklerepo.dto.Record.Status.RESET THEN 1 ELSE 0 END)," +
-            " MAX(r.timeOfLastModification), " +
-            " MAX(r.batch))" +
-            " FROM Record r, DataSet d" +
-            " WHERE d.id = ?1 AND d.id = r.dataset" +
-            " GROUP BY d.name";
+    /* Statements of result sets taking longer than the threshold to execute,
+       for the SQL of every statement enable debug logging of TickleRepo */
+    private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(TickleRepo.class.getName() + ".slowQueries");
+    static final long SLOW_QUERY_THRESHOLD_IN_MILLIS = 1000;
+
+    /* Dataset summaries are served from the dataset_counter table, which is
+       maintained by triggers on the record table, see V7__add_dataset_counter.sql
+       and V15__stripe_dataset_counter.sql */
+    private static final String GET_DATASET_SUMMARY_QUERY = "SELECT d.name," +
+            " sum(c.records)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'ACTIVE'), 0)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'DELETED'), 0)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'RESET'), 0)::bigint," +
+            " max(c.timeOfLastModification)," +
+            " coalesce(max(c.batch), 0)" +
+            " FROM dataset d JOIN dataset_counter c ON c.dataset = d.id" +
+            " GROUP BY d.id, d.name" +
+            " HAVING sum(c.records) > 0" +
+            " ORDER BY d.name";
+
+    private static final String GET_DATASET_SIZE_QUERY =
+            "SELECT coalesce(sum(records), 0) FROM dataset_counter WHERE dataset = ?1";
+
+    private static final String GET_DATASET_SUMMARY_BY_DATASET_ID_QUERY = "SELECT d.name," +
+            " sum(c.records)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'ACTIVE'), 0)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'DELETED'), 0)::bigint," +
+            " coalesce(sum(c.records) FILTER (WHERE c.status = 'RESET'), 0)::bigint," +
+            " max(c.timeOfLastModification)," +
+            " coalesce(max(c.batch), 0)" +
+            " FROM dataset d JOIN dataset_counter c ON c.dataset = d.id" +
+            " WHERE d.id = ?1" +
+            " GROUP BY d.id, d.name" +
+            " HAVING sum(c.records) > 0";
+
+    /* Compacted counters are kept in stripe -1, which the triggers never write to,
+       see V15__stripe_dataset_counter.sql. Compaction takes an advisory lock per
+       dataset, and leaves datasets alone while they are compacted by another
+       transaction. Rows locked by writers are skipped rather than waited for,
+       and are left for the next compaction, so compaction never waits. */
+    private static final String LOCK_DATASET_COUNTERS =
+            "pg_try_advisory_xact_lock(hashtext('dataset_counter'), dataset)";
+
+    private static final String ADD_TO_DATASET_COUNTER =
+            " ON CONFLICT (dataset, status, stripe) DO UPDATE SET" +
+            " records = dataset_counter.records + EXCLUDED.records," +
+            " timeOfLastModification = greatest(dataset_counter.timeOfLastModification, EXCLUDED.timeOfLastModification)," +
+            " batch = greatest(dataset_counter.batch, EXCLUDED.batch)";
+
+    private static final String COMPACT_DATASET_COUNTERS_QUERY =
+            "WITH removed AS (" +
+            "  DELETE FROM dataset_counter WHERE ctid IN (" +
+            "    SELECT ctid FROM dataset_counter WHERE dataset = ?1 AND " + LOCK_DATASET_COUNTERS +
+            "    FOR UPDATE SKIP LOCKED)" +
+            "  RETURNING dataset, status, records, timeOfLastModification, batch" +
+            ")" +
+            " INSERT INTO dataset_counter (dataset, status, stripe, records, timeOfLastModification, batch)" +
+            " SELECT dataset, status, -1, sum(records), max(timeOfLastModification), max(batch)" +
+            " FROM removed GROUP BY dataset, status" +
+            ADD_TO_DATASET_COUNTER;
+
+    private static final String COMPACT_ALL_DATASET_COUNTERS_QUERY =
+            "WITH removed AS (" +
+            "  DELETE FROM dataset_counter WHERE ctid IN (" +
+            "    SELECT ctid FROM dataset_counter WHERE " + LOCK_DATASET_COUNTERS +
+            "    FOR UPDATE SKIP LOCKED)" +
+            "  RETURNING dataset, status, records, timeOfLastModification, batch" +
+            ")" +
+            " INSERT INTO dataset_counter (dataset, status, stripe, records, timeOfLastModification, batch)" +
+            " SELECT dataset, status, -1, sum(records), max(timeOfLastModification), max(batch)" +
+            " FROM removed GROUP BY dataset, status" +
+            ADD_TO_DATASET_COUNTER;
+
+    /* Keeps compaction away from all datasets while they are rebuilt */
+    private static final String LOCK_ALL_DATASET_COUNTERS_QUERY =
+            "SELECT count(pg_advisory_xact_lock(hashtext('dataset_counter'), id))" +
+            " FROM (SELECT id FROM dataset ORDER BY id) AS datasets";
+
+    /* Record writers add their deltas to counter rows through triggers,
+       bypassing the advisory locks, so they are blocked until the rebuild
+       commits. Otherwise the DELETE could wait for a counter row updated by
+       a writer and delete the updated version, while the records counted
+       were read from a snapshot taken before the change. */
+    private static final String LOCK_RECORDS_QUERY = "LOCK TABLE record IN SHARE MODE";
+
+    /* Runs as a single statement, so counter rows deleted and records counted
+       share the same snapshot, taken once record writers are locked out.
+       Joining the number of rows deleted makes the DELETE complete before the
+       first counter row is inserted. */
+    private static final String REBUILD_DATASET_COUNTERS_QUERY =
+            "WITH removed AS (DELETE FROM dataset_counter RETURNING dataset)" +
+            " INSERT INTO dataset_counter (dataset, status, stripe, records, timeOfLastModification, batch)" +
+            " SELECT dataset, status, -1, count(*), max(timeOfLastModification), max(batch)" +
+            " FROM record, (SELECT count(*) FROM removed) AS deleted WHERE dataset IS NOT NULL" +
+            " GROUP BY dataset, status" +
+            ADD_TO_DATASET_COUNTER;
+
+    private static final String GET_RECORD_CONTENT_QUERY =
+            "SELECT coalesce(record.content, record_content.data), record.contentCodec::text FROM record" +
+            " LEFT JOIN record_content ON record_content.digest = record.contentDigest" +
+            " WHERE record.id = ?1";
+
+    private static final String GET_RECORD_CONTENT_REFERENCE_QUERY =
+            "SELECT contentDigest, contentCodec::text FROM record WHERE id = ?";
+
+    /* Keeps shared content from being purged until the transaction ends */
+    private static final String LOCK_SHARED_CONTENT_QUERY =
+            "SELECT octet_length(data) FROM record_content WHERE digest = ? FOR KEY SHARE";
+
+    /* Keeps content kept in the record itself from changing until the transaction ends */
+    private static final String LOCK_RECORD_CONTENT_QUERY =
+            "SELECT octet_length(content), contentCodec::text FROM record" +
+            " WHERE id = ? AND contentDigest IS NULL FOR SHARE";
+
+    /* COPY takes no bind parameters, the selection is appended as a literal
+       integer condition. Fields as read by RecordExportReader. */
+    private static final String EXPORT_RECORDS_QUERY =
+            "COPY (SELECT record.id, record.batch, record.dataset, record.localId, record.trackingId," +
+            " record.status::text, record.generation, record.timeOfCreation, record.timeOfLastModification," +
+            " coalesce(record.content, record_content.data), record.contentCodec::text, record.checksum" +
+            " FROM record LEFT JOIN record_content ON record_content.digest = record.contentDigest" +
+            " WHERE %s = %d ORDER BY record.id) TO STDOUT (FORMAT binary)";
+
+    /* Content locked by a transaction about to reference it, see the
+       record_content_store trigger, is skipped. The refcount is checked
+       again after locking, since it may have changed while waiting. */
+    private static final String PURGE_RECORD_CONTENT_QUERY =
+            "DELETE FROM record_content WHERE digest IN (" +
+            "  SELECT digest FROM record_content WHERE refcount <= 0 FOR UPDATE SKIP LOCKED)" +
+            " AND refcount <= 0";
+
+    /* See V12__partition_record_by_dataset.sql */
+    private static final String PARTITION_RECORD_TABLE_QUERY = "SELECT record_partition_by_dataset()";
+    private static final String CREATE_DATASET_PARTITION_QUERY = "SELECT record_create_dataset_partition(?1)";
+    private static final String DROP_DATASET_PARTITION_QUERY = "SELECT record_drop_dataset_partition(?1)";
+
+    private static final String VERIFY_DATASET_COUNTERS_QUERY =
+            "WITH exact AS (" +
+            "  SELECT dataset, status, count(*) AS records FROM record GROUP BY dataset, status" +
+            "), counted AS (" +
+            "  SELECT dataset, status, sum(records) AS records FROM dataset_counter GROUP BY dataset, status" +
+            ")" +
+            " SELECT DISTINCT d.name FROM exact FULL JOIN counted USING (dataset, status)" +
+            " JOIN dataset d ON d.id = dataset" +
+            " WHERE coalesce(exact.records, 0) <> coalesce(counted.records, 0)" +
+            " ORDER BY d.name";
+
+    /* Local IDs are passed as a single array, so every lookup is the same statement */
+    private static final String LOOKUP_RECORDS_QUERY =
+            "SELECT * FROM record WHERE dataset = ?1 AND localId = ANY(?2)";
+
+    /* Native queries do not join fetch, the shared content of the records
+       looked up is read up front, to be found by digest as they are built */
+    private static final String LOOKUP_SHARED_CONTENT_QUERY =
+            "SELECT * FROM record_content WHERE digest IN (" +
+            "  SELECT contentDigest FROM record WHERE dataset = ?1 AND localId = ANY(?2))";
+
+    /* Joins the local IDs with their position in the array, to return
+       records in the order of the array. Partition pruning on dataset
+       happens at execution time. */
+    private static final String GET_RECORDS_BY_LOCALIDS_QUERY =
+            "SELECT record.*, record_content.data" +
+            " FROM unnest(?) WITH ORDINALITY AS ids(localId, ordinal)" +
+            " JOIN record ON record.dataset = ? AND record.localId = ids.localId" +
+            " LEFT JOIN record_content ON record_content.digest = record.contentDigest" +
+            " ORDER BY ids.ordinal";
+
+    /* Arrays of equal length are unnested in parallel, pairing local IDs
+       with checksums, record.id is null only for local IDs not found */
+    private static final String DIFF_CHECKSUMS_QUERY =
+            "SELECT ids.localId, record.id IS NULL, record.checksum IS DISTINCT FROM ids.checksum" +
+            " FROM unnest(?::text[], ?::text[]) WITH ORDINALITY AS ids(localId, checksum, ordinal)" +
+            " LEFT JOIN record ON record.dataset = ? AND record.localId = ids.localId" +
+            " ORDER BY ids.ordinal";
 
     private static final String GET_DATASETS_BY_SUBMITTER_QUERY = "SELECT dataset FROM DataSet dataSet WHERE dataset.agencyId = ?1";
 
+    private static final String GET_DATASET_VERSION_QUERY = "SELECT version FROM dataset_version";
+
+    /* Shared by all instances of this stateless bean */
+    private static final DataSetCache DATASET_CACHE = new DataSetCache();
+    private static final BatchCache BATCH_CACHE = new BatchCache();
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    /* Name of the operation being timed on the current thread, if any */
+    private static final ThreadLocal<String> TIMED_OPERATION = new ThreadLocal<>();
+
+    static final int PREPARE_THRESHOLD = 1;
+    static final int DIFF_CHUNK_SIZE = 10000;
+    private static volatile TickleRepoMetrics metrics = TickleRepoMetrics.NONE;
+    /* SQL of named queries by name, as translated by EclipseLink */
+    static final Map<String, String> NAMED_QUERY_SQL = new ConcurrentHashMap<>();
+
     @PersistenceContext(unitName = "tickleRepoPU")
     EntityManager entityManager;
 
+    @Resource(lookup = "jdbc/tickle-repo")
+    DataSource dataSource;
+
+    @Resource
+    SessionContext sessionContext;
+
+    @Resource
+    TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    DataSetCache dataSetCache = DATASET_CACHE;
+    BatchCache batchCache = BATCH_CACHE;
+
     public TickleRepo() {
     }
 
-    public TickleRepo(EntityManager entityManager) {
-        this.entityManager = entityManager;
+    public TickleRepo(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    public TickleRepo(EntityManager entityManager, DataSource dataSource) {
+        this.entityManager = entityManager;
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Sets the receiver of measurements taken by all instances,
+     * {@link TickleRepoMetrics#NONE} (the default) disables measurements
+     *
+     * @param metrics receiver of measurements
+     */
+    public static void setMetrics(TickleRepoMetrics metrics) {
+        TickleRepo.metrics = metrics != null ? metrics : TickleRepoMetrics.NONE;
+    }
+
+    public static TickleRepoMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Persists given batch.
+     * <p>
+     * Batches of type TOTAL in sweep mode MARK will also have their records marked,
+     * meaning any record remaining in the dataset with a status of ACTIVE
+     * will have its status set to RESET. Batches in sweep mode GENERATION
+     * leave the records of the dataset untouched.
+     * </p>
+     *
+     * @param batch batch to create
+     * @return managed Batch object
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Batch createBatch(Batch batch) {
+        return timed("createBatch", () -> {
+            persist(batch);
+            if (isMarking(batch)) {
+                LOGGER.info("{} records marked by batch {}", mark(batch), batch);
+            }
+            return batch;
+        });
+    }
+
+    /**
+     * Persists given batch without marking any records, leaving the marking
+     * of batches in sweep mode MARK to the caller.
+     * <p>
+     * Used by {@link #createBatch(Batch, ChunkedUpdate)}, prefer that method
+     * or {@link #createBatch(Batch)}.
+     * </p>
+     *
+     * @param batch batch to create
+     * @return managed Batch object
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Batch createBatchUnmarked(Batch batch) {
+        return timed("createBatchUnmarked", () -> {
+            return persist(batch);
+        });
+    }
+
+    /**
+     * Closes given batch by setting its time-of-completion.
+     * <p>
+     * Batches of type TOTAL will also have their records swept,
+     * meaning any record remaining in the dataset with a status of RESET
+     * will have its status set to DELETED and its batch ID updated
+     * to that of the given batch. In sweep mode GENERATION the records swept
+     * are instead those not deleted, whose generation is older than the batch.
+     * </p>
+     *
+     * @param batch batch to close
+     */
+    public Batch closeBatch(Batch batch) {
+        return timed("closeBatch", () -> {
+            final Batch merged = entityManager.merge(batch);
+            if (merged.getType() == Batch.Type.TOTAL) {
+                LOGGER.info("{} records swept for batch {}", sweep(merged), merged);
+            }
+            return complete(merged);
+        });
+    }
+
+    /**
+     * Aborts given batch by setting its time-of-completion.
+     * <p>
+     * Batches of type TOTAL will also have their remaining sweep markers undone,
+     * meaning any record remaining in the dataset with a status of RESET
+     * will have its status set back to ACTIVE and its batch ID left untouched.
+     * Batches in sweep mode GENERATION have no markers to undo, and are
+     * not swept.
+     * </p>
+     *
+     * @param batch batch to abort
+     */
+    public Batch abortBatch(Batch batch) {
+        return timed("abortBatch", () -> {
+            if (batch.getType() == Batch.Type.TOTAL && batch.getSweepMode() == Batch.SweepMode.GENERATION) {
+                return complete(entityManager.merge(batch));
+            }
+            if (isMarking(batch)) {
+                LOGGER.info("{} marks undone for batch {}", undoMark(batch), batch);
+            }
+            return closeBatch(batch);
+        });
+    }
+
+    /**
+     * Persists given batch like {@link #createBatch(Batch)}, but marks
+     * the records of TOTAL batches in chunks each committed separately.
+     * <p>
+     * The batch is persisted before any records are marked, every record
+     * ACTIVE when reached by the marking is marked, like by a single
+     * statement, so records must not be added to the batch until this
+     * method returns. Should the marking fail, the batch exists with part
+     * of its records marked, and the marks are undone by aborting it.
+     * </p>
+     *
+     * @param batch         batch to create
+     * @param chunkedUpdate chunk settings
+     * @return managed Batch object
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Batch createBatch(Batch batch, ChunkedUpdate chunkedUpdate) {
+        return timed("createBatch", () -> {
+            final Batch created = self().createBatchUnmarked(batch);
+            if (isMarking(created)) {
+                LOGGER.info("{} records marked in chunks by batch {}",
+                        recordsUpdated("mark", created.getDataset(),
+                                new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("mark",
+                                        created.getDataset(), ChunkedRecordUpdater.MARK,
+                                        created.getDataset())),
+                        created);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * Closes given batch like {@link #closeBatch(Batch)}, but sweeps
+     * the records of TOTAL batches in chunks each committed separately.
+     *
+     * @param batch         batch to close
+     * @param chunkedUpdate chunk settings
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Batch closeBatch(Batch batch, ChunkedUpdate chunkedUpdate) {
+        return timed("closeBatch", () -> {
+            if (isMarking(batch)) {
+                LOGGER.info("{} records swept in chunks for batch {}",
+                        recordsUpdated("sweep", batch.getDataset(),
+                                new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("sweep",
+                                        batch.getDataset(), ChunkedRecordUpdater.SWEEP,
+                                        batch.getId(), new Timestamp(new Date().getTime()), batch.getDataset())),
+                        batch);
+            } else if (batch.getType() == Batch.Type.TOTAL) {
+                LOGGER.info("{} records swept in chunks for batch {}",
+                        recordsUpdated("sweep", batch.getDataset(),
+                                new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("sweep",
+                                        batch.getDataset(), ChunkedRecordUpdater.SWEEP_GENERATION,
+                                        batch.getId(), new Timestamp(new Date().getTime()), batch.getDataset(), batch.getId())),
+                        batch);
+            }
+            return self().closeBatch(batch);
+        });
+    }
+
+    /**
+     * Aborts given batch like {@link #abortBatch(Batch)}, but undoes
+     * the sweep markers of TOTAL batches in chunks each committed separately.
+     *
+     * @param batch         batch to abort
+     * @param chunkedUpdate chunk settings
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Batch abortBatch(Batch batch, ChunkedUpdate chunkedUpdate) {
+        return timed("abortBatch", () -> {
+            if (isMarking(batch)) {
+                LOGGER.info("{} marks undone in chunks for batch {}",
+                        recordsUpdated("undoMark", batch.getDataset(),
+                                new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("undoMark",
+                                        batch.getDataset(), ChunkedRecordUpdater.UNDO_MARK, batch.getDataset())),
+                        batch);
+            }
+            return self().abortBatch(batch);
+        });
+    }
+
+    /**
+     * Returns next batch compared to last batch seen if it is completed
+     *
+     * @param lastSeenBatch last seen batch for a dataset
+     * @return next available batch
+     */
+    public Optional<Batch> getNextBatch(Batch lastSeenBatch) {
+        return timed("getNextBatch", () -> {
+            /* The eclipselink.refresh hint below breaks portability, the
+               alternative is to do a refresh on each entity returned, but
+               this entails suboptimal performance.
+               Note: javax.persistence.cache.retrieveMode hint does not seem to work currently */
+            return entityManager.createNamedQuery(Batch.GET_NEXT_BATCH_QUERY_NAME, Batch.class)
+                    .setHint("eclipselink.refresh", true)
+                    .setParameter("lastSeenId", lastSeenBatch.getId())
+                    .setParameter("dataset", lastSeenBatch.getDataset())
+                    .setMaxResults(1)
+                    .getResultList()
+                    .stream()
+                    .filter(batch -> batch.getTimeOfCompletion() != null)
+                    .findFirst();
+        });
+    }
+
+    /**
+     * Subscribes given listener to batches completed in the dataset of given
+     * last seen batch, as an alternative to polling {@link #getNextBatch(Batch)}.
+     * <p>
+     * Batches completed after the last seen batch, but before this method
+     * returns, are not delivered, call {@link #getNextBatch(Batch)} afterwards
+     * to catch up. The caller owns the returned notifier and must close it.
+     * </p>
+     *
+     * @param lastSeenBatch last batch seen by the listener, only its dataset is used
+     * @param listener      listener
+     * @return started notifier holding a connection of its own
+     */
+    public BatchCompletionNotifier subscribeToBatchCompletions(Batch lastSeenBatch, BatchCompletionListener listener) {
+        return timed("subscribeToBatchCompletions", () -> {
+            try {
+                return new BatchCompletionNotifier(dataSource)
+                        .subscribe(lastSeenBatch.getDataset(), listener)
+                        .start();
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Changes the status of records in the dataset to DELETED if their time
+     * of last modification is before given cut-off time and updates the
+     * batch ID of these records to that of the given batch.
+     *
+     * @param batch      batch for which to delete outdated records
+     * @param cutOffTime threshold for outdated records
+     */
+    public void deleteOutdatedRecordsInBatch(Batch batch, Instant cutOffTime) {
+        timed("deleteOutdatedRecordsInBatch", () -> {
+            LOGGER.info("Deleted {} outdated records in dataset {} batch {}",
+                    batch.getDataset(), batch.getId(),
+                    recordsUpdated("sweepOutdated", batch.getDataset(),
+                            entityManager.createNamedQuery(Record.SWEEP_OUTDATED_QUERY_NAME)
+                                    .setParameter("batch", batch.getId())
+                                    .setParameter("dataset", batch.getDataset())
+                                    .setParameter("now", new Date())
+                                    .setParameter("cutOffTime", Timestamp.from(cutOffTime))
+                                    .executeUpdate()));
+            return null;
+        });
+    }
+
+    /**
+     * Purges the records of given dataset which have been DELETED for longer than
+     * the retention period of the dataset, see {@link DataSet#getDeletedRecordRetentionDays()}.
+     * <p>
+     * Records are purged in chunks each committed separately. With
+     * {@link PurgeMode#STRIP_CONTENT} the records are kept as tombstones, with
+     * their local ID, tracking ID, batch and time of deletion, so that consumers
+     * yet to see the batch in which they were deleted still learn of the
+     * deletion, while their content is released. With {@link PurgeMode#DELETE}
+     * the records are removed altogether. Content no longer referenced is not
+     * removed until {@link #purgeRecordContent()} is called.
+     * </p>
+     *
+     * @param dataSet       dataset, with its retention period
+     * @param purgeMode     how to purge records
+     * @param chunkedUpdate chunk settings, through which progress is reported
+     * @return number of records purged, zero if the dataset has no retention period
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public long purgeDeletedRecords(DataSet dataSet, PurgeMode purgeMode, ChunkedUpdate chunkedUpdate) {
+        return timed("purgeDeletedRecords", () -> {
+            final Integer retentionDays = dataSet.getDeletedRecordRetentionDays();
+            if (retentionDays == null) {
+                return 0L;
+            }
+            final Timestamp cutOffTime = Timestamp.from(Instant.now().minus(retentionDays, ChronoUnit.DAYS));
+            final long purged = recordsUpdated("purgeDeleted", dataSet.getId(),
+                    new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("purgeDeleted", dataSet.getId(),
+                            purgeMode == PurgeMode.DELETE
+                                    ? ChunkedRecordUpdater.PURGE_DELETED : ChunkedRecordUpdater.STRIP_DELETED,
+                            dataSet.getId(), cutOffTime));
+            LOGGER.info("Purged {} records deleted before {} in dataset {} by {}",
+                    purged, cutOffTime, dataSet.getId(), purgeMode);
+            return purged;
+        });
+    }
+
+    /**
+     * Moves content kept in the records of given dataset into the shared
+     * content, see {@link #purgeRecordContent()}.
+     * <p>
+     * Records written before content was shared keep their content until
+     * updated, or until moved by this method, in chunks each committed
+     * separately. Records whose content collides with shared content of
+     * another value keep it, and are counted every time.
+     * </p>
+     *
+     * @param dataSet       dataset
+     * @param chunkedUpdate chunk settings, through which progress is reported
+     * @return number of records updated
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public long moveRecordContent(DataSet dataSet, ChunkedUpdate chunkedUpdate) {
+        return timed("moveRecordContent", () -> recordsUpdated("moveContent", dataSet.getId(),
+                new ChunkedRecordUpdater(dataSource, chunkedUpdate).run("moveContent", dataSet.getId(),
+                        ChunkedRecordUpdater.MOVE_CONTENT, dataSet.getId())));
+    }
+
+    /**
+     * Inserts or updates given records in the dataset of given batch in bulk
+     * <p>
+     * Records are streamed to the database using COPY and then merged into
+     * the dataset on their local IDs. New records are added to the given batch.
+     * For existing records, the batch ID and content are only changed if the
+     * checksum differs, mirroring {@link Record#updateBatchIfModified(Batch, String)}.
+     * The tracking ID and status are always taken from the given record.
+     * </p>
+     * <p>
+     * Only local ID, tracking ID, status, content and checksum are read from
+     * the given records, all of which are required. If the same local ID occurs
+     * more than once, the last occurrence wins.
+     * </p>
+     * <p>
+     * Content not already encoded is stored encoded by the content codec of the dataset.
+     * </p>
+     * <p>
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param batch   batch to which new or modified records are added
+     * @param records records to ingest
+     * @return number of records inserted, updated and unchanged
+     */
+    public IngestResult ingestRecords(Batch batch, Iterable<Record> records) {
+        return timed("ingestRecords", () -> {
+            try {
+                final ContentCodec contentCodec = lookupDataSet(new DataSet().withId(batch.getDataset()))
+                        .map(DataSet::getContentCodec)
+                        .orElse(ContentCodec.NONE);
+                final IngestResult result = new RecordIngester(getConnection(), contentCodec).ingest(batch, records);
+                LOGGER.info("{} for batch {}", result, batch);
+                return result;
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns iterator for all records belonging to given batch
+     * <p>
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param batch batch
+     * @return batch iterator as ResultSet abstraction
+     */
+    public ResultSet<Record> getRecordsInBatch(Batch batch) {
+        return timed("getRecordsInBatch", () -> {
+            final Query query = entityManager.createNamedQuery(Record.GET_RECORDS_IN_BATCH_QUERY_NAME)
+                    .setParameter(1, batch.getId());
+            return new ResultSet<>("getRecordsInBatch", query, new RecordMapping());
+        });
+    }
+
+    /**
+     * Returns iterator for all records belonging to given data set
+     * <p>
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param dataSet data set
+     * @return batch iterator as ResultSet abstraction
+     */
+    public ResultSet<Record> getRecordsInDataSet(DataSet dataSet) {
+        return timed("getRecordsInDataSet", () -> {
+            final Query query = entityManager.createNamedQuery(Record.GET_RECORDS_IN_DATASET_QUERY_NAME)
+                    .setParameter(1, dataSet.getId());
+            return new ResultSet<>("getRecordsInDataSet", query, new RecordMapping());
+        });
+    }
+
+    /**
+     * Returns publisher of all records belonging to given batch, in record ID order
+     * <p>
+     * Unlike {@link #getRecordsInBatch(Batch)} records are pushed to the subscriber
+     * as it requests them, read through a cursor on a connection of its own
+     * from the {@link DataSource}, outside of any transaction of the caller.
+     * Records are fetched in windows no larger than the outstanding demand, and
+     * at most 1000 at a time. Cancelling the subscription closes the cursor.
+     * Each subscriber receives all records of the batch.
+     * </p>
+     *
+     * @param batch    batch
+     * @param executor executor reading records and signalling the subscriber,
+     *                 typically a managed executor service in a container
+     * @return record publisher
+     * @throws NullPointerException if executor is null
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Flow.Publisher<Record> publishRecordsInBatch(Batch batch, Executor executor) {
+        return timed("publishRecordsInBatch", () -> new RecordPublisher(dataSource, "publishRecordsInBatch",
+                RecordPublisher.GET_RECORDS_IN_BATCH, batch.getId(), executor));
+    }
+
+    /**
+     * Returns publisher of all records belonging to given data set, in record ID order,
+     * see {@link #publishRecordsInBatch(Batch, Executor)}
+     *
+     * @param dataSet  data set
+     * @param executor executor reading records and signalling the subscriber,
+     *                 typically a managed executor service in a container
+     * @return record publisher
+     * @throws NullPointerException if executor is null
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Flow.Publisher<Record> publishRecordsInDataSet(DataSet dataSet, Executor executor) {
+        return timed("publishRecordsInDataSet", () -> new RecordPublisher(dataSource, "publishRecordsInDataSet",
+                RecordPublisher.GET_RECORDS_IN_DATASET, dataSet.getId(), executor));
+    }
+
+    /**
+     * Returns iterator for the headers of all records belonging to given batch
+     * <p>
+     * Unlike {@link #getRecordsInBatch(Batch)} record content is never read,
+     * see {@link #getRecordContent(int)}.
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param batch batch
+     * @return record header iterator as ResultSet abstraction
+     */
+    public ResultSet<RecordHeader> getRecordHeadersInBatch(Batch batch) {
+        return timed("getRecordHeadersInBatch", () -> {
+            final Query query = entityManager.createNamedQuery(Record.GET_RECORD_HEADERS_IN_BATCH_QUERY_NAME)
+                    .setParameter(1, batch.getId());
+            return new ResultSet<>("getRecordHeadersInBatch", query, new RecordHeaderMapping());
+        });
+    }
+
+    /**
+     * Returns iterator for the headers of all records belonging to given data set
+     * <p>
+     * Unlike {@link #getRecordsInDataSet(DataSet)} record content is never read,
+     * see {@link #getRecordContent(int)}.
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param dataSet data set
+     * @return record header iterator as ResultSet abstraction
+     */
+    public ResultSet<RecordHeader> getRecordHeadersInDataSet(DataSet dataSet) {
+        return timed("getRecordHeadersInDataSet", () -> {
+            final Query query = entityManager.createNamedQuery(Record.GET_RECORD_HEADERS_IN_DATASET_QUERY_NAME)
+                    .setParameter(1, dataSet.getId());
+            return new ResultSet<>("getRecordHeadersInDataSet", query, new RecordHeaderMapping());
+        });
+    }
+
+    /**
+     * Loads the content of a single record
+     *
+     * @param recordId ID of record
+     * @return decoded content, or empty if no record with given ID exists
+     * @throws IllegalStateException if stored content can not be decoded
+     */
+    public Optional<byte[]> getRecordContent(int recordId) throws IllegalStateException {
+        return timed("getRecordContent", () -> {
+            final List<?> rows = entityManager.createNativeQuery(GET_RECORD_CONTENT_QUERY)
+                    .setParameter(1, recordId)
+                    .getResultList();
+            if (rows.isEmpty()) {
+                return Optional.empty();
+            }
+            final Object[] row = (Object[]) rows.get(0);
+            final byte[] storedContent = (byte[]) row[0];
+            metrics.recordsStreamed("getRecordContent", 1, storedContent != null ? storedContent.length : 0);
+            final ContentCodec contentCodec = new ContentCodecConverter().convertToEntityAttribute((String) row[1]);
+            return Optional.ofNullable(contentCodec.decode(storedContent));
+        });
+    }
+
+    /**
+     * Opens the content of a single record for reading on demand
+     * <p>
+     * Unlike {@link #getRecordContent(int)} the content is never held in memory
+     * as a whole, it is read from the database in slices of at most 1 MB as the
+     * returned stream is consumed. Combined with {@link #getRecordHeadersInBatch(Batch)}
+     * or {@link #getRecordHeadersInDataSet(DataSet)} this lets records of any size
+     * be processed in bounded memory. Wrap the stream by
+     * {@link java.nio.channels.Channels#newChannel(InputStream)} for a channel.
+     * </p>
+     * <p>
+     * This method needs to run in a transaction, and the stream must be read
+     * and closed before the transaction ends. The stream reads the content of
+     * the record as it was when opened, even if the record is updated while
+     * it is being read. Until the transaction ends the content is kept from
+     * being purged, or in the rare case of content kept in the record itself,
+     * the record is kept from being updated.
+     * </p>
+     *
+     * @param recordId ID of record
+     * @return stream of decoded content, or empty if no record with given ID exists
+     */
+    public Optional<InputStream> openRecordContent(int recordId) {
+        return timed("openRecordContent", () -> {
+            try {
+                // The content referenced may be replaced between resolving and
+                // locking it, in which case it is resolved again
+                while (true) {
+                    final String digest;
+                    final String codec;
+                    try (PreparedStatement statement = getConnection().prepareStatement(GET_RECORD_CONTENT_REFERENCE_QUERY)) {
+                        statement.setInt(1, recordId);
+                        try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                            if (!resultSet.next()) {
+                                return Optional.empty();
+                            }
+                            digest = resultSet.getString(1);
+                            codec = resultSet.getString(2);
+                        }
+                    }
+                    final Optional<InputStream> content = digest != null
+                            ? openSharedContent(digest, codec)
+                            : openContentOfRecord(recordId);
+                    if (content != null) {
+                        return content;
+                    }
+                }
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /* Returns null if the content is no longer stored */
+    private Optional<InputStream> openSharedContent(String digest, String codec) throws SQLException {
+        try (PreparedStatement statement = getConnection().prepareStatement(LOCK_SHARED_CONTENT_QUERY)) {
+            statement.setString(1, digest);
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                final long length = resultSet.getLong(1);
+                metrics.recordsStreamed("openRecordContent", 1, length);
+                return Optional.of(new ContentCodecConverter().convertToEntityAttribute(codec)
+                        .decodeStream(RecordContentInputStream.ofSharedContent(getConnection(), digest,
+                                length, RecordContentInputStream.DEFAULT_SLICE_SIZE)));
+            }
+        }
+    }
+
+    /* Returns null if the content of the record is no longer kept in the record itself */
+    private Optional<InputStream> openContentOfRecord(int recordId) throws SQLException {
+        try (PreparedStatement statement = getConnection().prepareStatement(LOCK_RECORD_CONTENT_QUERY)) {
+            statement.setInt(1, recordId);
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                final long length = resultSet.getLong(1);
+                metrics.recordsStreamed("openRecordContent", 1, length);
+                return Optional.of(new ContentCodecConverter().convertToEntityAttribute(resultSet.getString(2))
+                        .decodeStream(RecordContentInputStream.ofRecordContent(getConnection(), recordId,
+                                length, RecordContentInputStream.DEFAULT_SLICE_SIZE)));
+            }
+        }
+    }
+
+    /**
+     * Returns the next page of records belonging to given data set in record ID order
+     * <p>
+     * Unlike {@link #getRecordsInDataSet(DataSet)} no cursor is kept open between
+     * pages, so a harvest of a large data set can be spread over any number of short
+     * transactions and resumed after a crash by reusing the last resume token seen.
+     * </p>
+     * <p>
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param dataSet     data set
+     * @param resumeToken token from previously returned page, or null to start from the beginning
+     * @param pageSize    maximum number of records in page
+     * @return page of records
+     * @throws IllegalArgumentException if page size is not positive or resume token is invalid for data set
+     */
+    public HarvestPage harvestRecordsInDataSet(DataSet dataSet, String resumeToken, int pageSize)
+            throws IllegalArgumentException {
+        return timed("harvestRecordsInDataSet", () -> {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Page size must be positive, was " + pageSize);
+            }
+            final ResumeToken position = ResumeToken.decode(resumeToken, dataSet.getId());
+            final Query query = entityManager.createNamedQuery(Record.GET_RECORDS_IN_DATASET_AFTER_ID_QUERY_NAME)
+                    .setParameter(1, dataSet.getId())
+                    .setParameter(2, position.getLastSeenId())
+                    .setMaxResults(pageSize);
+            final List<Record> records = new ArrayList<>(pageSize);
+            try (ResultSet<Record> rs = new ResultSet<>("harvestRecordsInDataSet", query, new RecordMapping())) {
+                for (Record record : rs) {
+                    records.add(record);
+                }
+            }
+            final int lastSeenId = records.isEmpty()
+                    ? position.getLastSeenId()
+                    : records.get(records.size() - 1).getId();
+            return new HarvestPage(records, new ResumeToken(dataSet.getId(), lastSeenId).encode(),
+                    records.size() < pageSize);
+        });
+    }
+
+    /**
+     * Exports all records belonging to given data set in partitions read in
+     * parallel, each on its own database connection.
+     * <p>
+     * All partitions read the same snapshot of the data set. Records of a partition
+     * are passed to the sink in record ID order from a single thread, see {@link RecordSink}.
+     * The export runs outside of any transaction of the caller.
+     * </p>
+     *
+     * @param dataSet        data set
+     * @param parallelExport partitioning settings, with the executor running the partitions
+     * @param sink           receiver of exported records
+     * @return future completed with the total number of records exported when all partitions are done,
+     * or exceptionally if any partition failed
+     * @throws IllegalArgumentException if no executor is set, see {@link ParallelExport#withExecutor(Executor)}
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public CompletableFuture<Long> exportRecordsInDataSet(DataSet dataSet, ParallelExport parallelExport,
+                                                          RecordSink sink) {
+        final long startTime = startTiming();
+        return new ParallelRecordExporter(dataSource, parallelExport).export(dataSet.getId(), sink)
+                .whenComplete((records, failure) -> stopTiming("exportRecordsInDataSet", startTime));
+    }
+
+    /**
+     * Streams all records belonging to given batch to given output stream
+     * in the PostgreSQL binary COPY format, decodable by {@link RecordExportReader}.
+     * <p>
+     * Records are written straight from the database without being mapped to
+     * {@link Record} objects. Content is written as stored, that is encoded by the
+     * content codec of the record. The output stream is not closed.
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param batch        batch
+     * @param outputStream destination of export
+     * @return number of records exported
+     * @throws IOException on failure to write to the output stream
+     */
+    public long exportRecordsInBatch(Batch batch, OutputStream outputStream) throws IOException {
+        return copyOut("exportRecordsInBatch",
+                String.format(EXPORT_RECORDS_QUERY, "record.batch", batch.getId()), outputStream);
+    }
+
+    /**
+     * Streams all records belonging to given batch to given channel,
+     * see {@link #exportRecordsInBatch(Batch, OutputStream)}
+     *
+     * @param batch   batch
+     * @param channel destination of export, not closed
+     * @return number of records exported
+     * @throws IOException on failure to write to the channel
+     */
+    public long exportRecordsInBatch(Batch batch, WritableByteChannel channel) throws IOException {
+        return exportRecordsInBatch(batch, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Streams all records belonging to given data set to given output stream,
+     * see {@link #exportRecordsInBatch(Batch, OutputStream)}
+     *
+     * @param dataSet      data set
+     * @param outputStream destination of export, not closed
+     * @return number of records exported
+     * @throws IOException on failure to write to the output stream
+     */
+    public long exportRecordsInDataSet(DataSet dataSet, OutputStream outputStream) throws IOException {
+        return copyOut("exportRecordsInDataSet",
+                String.format(EXPORT_RECORDS_QUERY, "record.dataset", dataSet.getId()), outputStream);
+    }
+
+    /**
+     * Streams all records belonging to given data set to given channel,
+     * see {@link #exportRecordsInBatch(Batch, OutputStream)}
+     *
+     * @param dataSet data set
+     * @param channel destination of export, not closed
+     * @return number of records exported
+     * @throws IOException on failure to write to the channel
+     */
+    public long exportRecordsInDataSet(DataSet dataSet, WritableByteChannel channel) throws IOException {
+        return exportRecordsInDataSet(dataSet, Channels.newOutputStream(channel));
+    }
+
+    private long copyOut(String operation, String copyQuery, OutputStream outputStream) throws IOException {
+        LOGGER.debug(copyQuery);
+        return timed(operation, () -> {
+            try {
+                final CountingOutputStream countingOutputStream = metrics != TickleRepoMetrics.NONE
+                        ? new CountingOutputStream(outputStream) : null;
+                final long records = getConnection().unwrap(PGConnection.class).getCopyAPI()
+                        .copyOut(copyQuery, countingOutputStream != null ? countingOutputStream : outputStream);
+                if (countingOutputStream != null) {
+                    metrics.recordsStreamed(operation, records, countingOutputStream.getCount());
+                }
+                return records;
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Tries to lookup batch in repository either by batch ID or by batch key
+     *
+     * @param value values placeholder
+     * @return managed Batch object if found
+     */
+    public Optional<Batch> lookupBatch(Batch value) {
+        return lookupBatch(value, false);
+    }
+
+    /**
+     * Tries to lookup batch in repository either by batch ID or by batch key
+     * <p>
+     * Read-only lookups of completed batches are served from a cache shared by
+     * all instances, without a round trip to the database. Batches not yet
+     * completed are always read from the database. Batches are only cached
+     * once their completion is known to be committed.
+     * </p>
+     *
+     * @param value    values placeholder
+     * @param readOnly if true the returned batch is not to be modified,
+     *                 and may be a detached copy
+     * @return Batch object if found
+     */
+    public Optional<Batch> lookupBatch(Batch value, boolean readOnly) {
+        return timed("lookupBatch", () -> {
+            if (value != null) {
+                if (value.getId() > 0) {
+                    if (readOnly) {
+                        final Batch cached = batchCache.getById(value.getId());
+                        if (cached != null) {
+                            return Optional.of(cached);
+                        }
+                    }
+                    return Optional.ofNullable(entityManager.find(Batch.class, value.getId(), Map.of(QueryHints.READ_ONLY, readOnly)))
+                            .map(batch -> cacheIfCompleted(batch, readOnly));
+                } else if (value.getBatchKey() > 0) {
+                    if (readOnly) {
+                        final Batch cached = batchCache.getByKey(value.getBatchKey());
+                        if (cached != null) {
+                            return Optional.of(cached);
+                        }
+                    }
+                    return entityManager.createNamedQuery(Batch.GET_BATCH_BY_KEY_QUERY_NAME, Batch.class)
+                            .setParameter("key", value.getBatchKey())
+                            .setMaxResults(1)
+                            .getResultList()
+                            .stream()
+                            .findFirst()
+                            .map(batch -> cacheIfCompleted(batch, readOnly));
+                }
+            }
+            return Optional.empty();
+        });
+    }
+
+    /* A batch completed by the current transaction must not be cached before
+       it commits, should it roll back the batch would be served as completed */
+    private Batch cacheIfCompleted(Batch batch, boolean readOnly) {
+        if (batch.getTimeOfCompletion() == null) {
+            return batch;
+        }
+        if (transactionSynchronizationRegistry == null) {
+            // Not managed by a container, only read-only lookups are trusted
+            // not to see changes of the current transaction
+            return readOnly ? batchCache.putIfCompleted(batch) : batch;
+        }
+        if (transactionSynchronizationRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+            return batchCache.putIfCompleted(batch);
+        }
+        final Batch completed = BatchCache.copyOf(batch);
+        transactionSynchronizationRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    batchCache.putIfCompleted(completed);
+                }
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * @return counters of the completed batch cache shared by all instances
+     */
+    public CacheStatistics getBatchCacheStatistics() {
+        return batchCache.getStatistics();
+    }
+
+    /**
+     * Lookup a list of records by their localId, belonging to a dataset
+     * <p>
+     * The local IDs are passed to the database as a single array, so there is no
+     * limit to their number, and local IDs given more than once are found once.
+     * For very large numbers of local IDs consider {@link #getRecordsByLocalIds(int, Collection)},
+     * which streams the records instead of loading them all into the persistence context.
+     * </p>
+     *
+     * @param dataset  ID of dataset
+     * @param localIds local IDs of records
+     * @return managed Record objects found, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public List<Record> lookupRecords(int dataset, List<String> localIds) {
+        return timed("lookupRecords", () -> {
+            if (localIds.isEmpty()) {
+                return List.of();
+            }
+            try {
+                final java.sql.Array localIdArray = getConnection().createArrayOf("text", localIds.toArray());
+                final List<RecordContent> sharedContent = entityManager
+                        .createNativeQuery(LOOKUP_SHARED_CONTENT_QUERY, RecordContent.class)
+                        .setParameter(1, dataset)
+                        .setParameter(2, localIdArray)
+                        .getResultList();
+                final List<Record> records = entityManager.createNativeQuery(LOOKUP_RECORDS_QUERY, Record.class)
+                        .setParameter(1, dataset)
+                        .setParameter(2, localIdArray)
+                        .getResultList();
+                LOGGER.debug("{} records found with {} shared contents", records.size(), sharedContent.size());
+                return records;
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns iterator for the records with given local IDs belonging to given dataset
+     * <p>
+     * The local IDs are passed to the database as a single array, so there is no
+     * limit to their number, and the records are returned as non-managed entities
+     * in the order of the given local IDs, local IDs not found are skipped.
+     * Local IDs given more than once are returned once, in the position of
+     * their first occurrence.
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param dataset  ID of dataset
+     * @param localIds local IDs of records
+     * @return record iterator as ResultSet abstraction
+     */
+    public ResultSet<Record> getRecordsByLocalIds(int dataset, Collection<String> localIds) {
+        return timed("getRecordsByLocalIds", () -> {
+            try {
+                final java.sql.Array localIdArray = getConnection().createArrayOf("text",
+                        new LinkedHashSet<>(localIds).toArray());
+                return new ResultSet<>("getRecordsByLocalIds", GET_RECORDS_BY_LOCALIDS_QUERY,
+                        new RecordMapping(), localIdArray, dataset);
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Compares given record checksums with those stored in given dataset,
+     * without reading the stored records
+     * <p>
+     * Only the local ID and checksum of the given records are used. The records
+     * are passed to the database in chunks of local ID and checksum arrays,
+     * joined with the record table server-side, and only the classification
+     * of each local ID is returned. Should a local ID be given more than once,
+     * its last checksum is the one compared, as when ingesting.
+     * This method needs to run in a transaction.
+     * </p>
+     *
+     * @param dataset ID of dataset
+     * @param records records to compare, each with local ID and checksum
+     * @return local IDs classified as new, changed or unchanged, in the order given
+     */
+    public ChecksumDiff diffChecksums(int dataset, Iterable<Record> records) {
+        return timed("diffChecksums", () -> {
+            try {
+                final Set<String> newLocalIds = new LinkedHashSet<>();
+                final Set<String> changedLocalIds = new LinkedHashSet<>();
+                final Set<String> unchangedLocalIds = new LinkedHashSet<>();
+                final Map<String, String> chunk = new LinkedHashMap<>();
+                final Iterator<Record> iterator = records.iterator();
+                try (PreparedStatement statement = getConnection().prepareStatement(DIFF_CHECKSUMS_QUERY)) {
+                    while (iterator.hasNext()) {
+                        final Record record = iterator.next();
+                        chunk.put(record.getLocalId(), record.getChecksum());
+                        if (chunk.size() == DIFF_CHUNK_SIZE || !iterator.hasNext()) {
+                            statement.setArray(1, getConnection().createArrayOf("text", chunk.keySet().toArray()));
+                            statement.setArray(2, getConnection().createArrayOf("text", chunk.values().toArray()));
+                            statement.setInt(3, dataset);
+                            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                                while (resultSet.next()) {
+                                    final String localId = resultSet.getString(1);
+                                    // A later chunk may repeat the local ID with another checksum
+                                    newLocalIds.remove(localId);
+                                    changedLocalIds.remove(localId);
+                                    unchangedLocalIds.remove(localId);
+                                    if (resultSet.getBoolean(2)) {
+                                        newLocalIds.add(localId);
+                                    } else if (resultSet.getBoolean(3)) {
+                                        changedLocalIds.add(localId);
+                                    } else {
+                                        unchangedLocalIds.add(localId);
+                                    }
+                                }
+                            }
+                            chunk.clear();
+                        }
+                    }
+                }
+                return new ChecksumDiff(newLocalIds, changedLocalIds, unchangedLocalIds);
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        });
+    }
+
+    /**
+     * Tries to lookup record in repository either by record ID or by (dataset,localId) combination
+     *
+     * @param value values placeholder
+     * @return managed Record object if found
+     */
+    public Optional<Record> lookupRecord(Record value) {
+        return timed("lookupRecord", () -> {
+            Optional<Record> record = Optional.empty();
+            if (value != null) {
+                if (value.getId() > 0) {
+                    record = Optional.ofNullable(entityManager.find(Record.class, value.getId()));
+                } else if (value.getLocalId() != null && value.getDataset() > 0) {
+                    record = entityManager.createNamedQuery(Record.GET_RECORD_BY_LOCALID_QUERY_NAME, Record.class)
+                            .setParameter("dataset", value.getDataset())
+                            .setParameter("localId", value.getLocalId())
+                            .setMaxResults(1)
+                            .getResultList()
+                            .stream()
+                            .findFirst();
+                }
+            }
+
+            // Other systems may update the record so we need to refresh the object to make sure the current
+            // version is returned.
+            if( record.isPresent() && record.get() != null ) {
+                entityManager.refresh(record.get());
+            }
+
+            return record;
+        });
     }
 
     /**
-     * Persists given batch.
+     * Returns summaries of all datasets containing records, ordered by name.
      * <p>
-     * Batches of type TOTAL will also have their records marked,
-     * meaning any record remaining in the dataset with a status of ACTIVE
-     * will have its status set to RESET.
+     * Summaries are served from incrementally maintained counters, so the
+     * cost depends on the number of datasets, not on the number of records.
+     * The time-of-last-modification and batch ID of a summary reflect
+     * every record ever written to the dataset, also records since deleted,
+     * until the counters are rebuilt.
      * </p>
      *
-     * @param batch batch to create
-     * @return managed Batch object
+     * @return list of dataset summaries
      */
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    public Batch createBatch(Batch batch) {
-        entityManager.persist(batch);
-        entityManager.flush();
-        entityManager.refresh(batch);
-        if (batch.getType() == Batch.Type.TOTAL) {
-            LOGGER.info("{} records marked by batch {}", mark(batch), batch);
-        }
-        return batch;
+    public List<DataSetSummary> getDataSetSummary() {
+        return timed("getDataSetSummary", () -> {
+            return toDataSetSummaries(entityManager.createNativeQuery(GET_DATASET_SUMMARY_QUERY)
+                    .getResultList());
+        });
     }
 
     /**
-     * Closes given batch by setting its time-of-completion.
+     * Returns summary of dataset, see {@link #getDataSetSummary()}
+     *
+     * @param dataSetId ID of dataset
+     * @return dataset summary or null if the dataset contains no records
+     */
+    public DataSetSummary getDataSetSummaryByDataSetId(int dataSetId) {
+        return timed("getDataSetSummaryByDataSetId", () -> {
+            return toDataSetSummaries(entityManager.createNativeQuery(GET_DATASET_SUMMARY_BY_DATASET_ID_QUERY)
+                    .setParameter(1, dataSetId)
+                    .getResultList())
+                    .stream()
+                    .findFirst()
+                    .orElse(null);
+        });
+    }
+
+    /**
+     * Sums the counter rows of given dataset into a single row per status.
      * <p>
-     * Batches of type TOTAL will also have their records swept,
-     * meaning any record remaining in the dataset with a status of RESET
-     * will have its status set to DELETED and its batch ID updated
-     * to that of the given batch.
+     * Counters are kept in a bounded number of rows per dataset and status,
+     * and compacted automatically whenever a batch is closed or aborted.
+     * Rows being written by concurrent transactions are left for the next
+     * compaction, as is the dataset if it is being compacted concurrently.
      * </p>
      *
-     * @param batch batch to close
+     * @param dataSetId ID of dataset
+     * @return number of counter rows after compaction
      */
-    public Batch closeBatch(Batch batch) {
-        batch = entityManager.merge(batch);
-        if (batch.getType() == Batch.Type.TOTAL) {
-            LOGGER.info("{} records swept for batch {}", sweep(batch), batch);
-        }
-        batch.withTimeOfCompletion(new Timestamp(new Date().getTime()));
-        return batch;
+    public int compactDataSetCounters(int dataSetId) {
+        return timed("compactDataSetCounters", () -> entityManager.createNativeQuery(COMPACT_DATASET_COUNTERS_QUERY)
+                .setParameter(1, dataSetId)
+                .executeUpdate());
     }
 
     /**
-     * Aborts given batch by setting its time-of-completion.
+     * Sums the counter rows of all datasets into a single row per dataset and status
+     *
+     * @return number of counter rows after compaction
+     */
+    public int compactDataSetCounters() {
+        return timed("compactDataSetCounters", () -> entityManager.createNativeQuery(COMPACT_ALL_DATASET_COUNTERS_QUERY)
+                .executeUpdate());
+    }
+
+    /**
+     * Recomputes the counters of all datasets from scratch.
      * <p>
-     * Batches of type TOTAL will also have their remaining sweep markers undone,
-     * meaning any record remaining in the dataset with a status of RESET
-     * will have its status set back to ACTIVE and its batch ID left untouched.
+     * This requires a full scan of the record table, during which records
+     * can not be written, writers waiting until the transaction ends.
      * </p>
      *
-     * @param batch batch to abort
+     * @return number of counter rows after rebuild
      */
-    public Batch abortBatch(Batch batch) {
-        if (batch.getType() == Batch.Type.TOTAL) {
-            LOGGER.info("{} marks undone for batch {}", undoMark(batch), batch);
-        }
-        return closeBatch(batch);
+    public int rebuildDataSetCounters() {
+        return timed("rebuildDataSetCounters", () -> {
+            entityManager.createNativeQuery(LOCK_ALL_DATASET_COUNTERS_QUERY)
+                    .getSingleResult();
+            entityManager.createNativeQuery(LOCK_RECORDS_QUERY)
+                    .executeUpdate();
+            return entityManager.createNativeQuery(REBUILD_DATASET_COUNTERS_QUERY)
+                    .executeUpdate();
+        });
     }
 
     /**
-     * Returns next batch compared to last batch seen if it is completed
+     * Compares the counters of all datasets with an exact count of their records.
+     * <p>
+     * This requires a full scan of the record table.
+     * </p>
      *
-     * @param lastSeenBatch last seen batch for a dataset
-     * @return next available batch
+     * @return names of datasets whose counters deviate, empty if all counters are correct
      */
-    public Optional<Batch> getNextBatch(Batch lastSeenBatch) {
-        /* The eclipselink.refresh hint below breaks portability, the
-           alternative is to do a refresh on each entity returned, but
-           this entails suboptimal performance.
-           Note: javax.persistence.cache.retrieveMode hint does not seem to work currently */
-        return entityManager.createNamedQuery(Batch.GET_NEXT_BATCH_QUERY_NAME, Batch.class)
-                .setHint("eclipselink.refresh", true)
-                .setParameter("lastSeenId", lastSeenBatch.getId())
-                .setParameter("dataset", lastSeenBatch.getDataset())
-                .setMaxResults(1)
-                .getResultList()
-                .stream()
-                .filter(batch -> batch.getTimeOfCompletion() != null)
-                .findFirst();
+    @SuppressWarnings("unchecked")
+    public List<String> verifyDataSetCounters() {
+        return timed("verifyDataSetCounters", () -> entityManager.createNativeQuery(VERIFY_DATASET_COUNTERS_QUERY)
+                .getResultList());
     }
 
     /**
-     * Changes the status of records in the dataset to DELETED if their time
-     * of last modification is before given cut-off time and updates the
-     * batch ID of these records to that of the given batch.
+     * Removes record content no longer referenced by any record.
+     * <p>
+     * Content shared by records is stored once in the record_content table
+     * and reference counted. Content is not removed when its last reference
+     * is, since it is likely to be referenced again by a later batch.
+     * </p>
      *
-     * @param batch      batch for which to delete outdated records
-     * @param cutOffTime threshold for outdated records
+     * @return number of record content rows removed
      */
-    public void deleteOutdatedRecordsInBatch(Batch batch, Instant cutOffTime) {
-        LOGGER.info("Deleted {} outdated records in dataset {} batch {}",
-                batch.getDataset(), batch.getId(),
-                entityManager.createNamedQuery(Record.SWEEP_OUTDATED_QUERY_NAME)
-                        .setParameter("batch", batch.getId())
-                        .setParameter("dataset", batch.getDataset())
-                        .setParameter("now", new Date())
-                        .setParameter("cutOffTime", Timestamp.from(cutOffTime))
-                        .executeUpdate());
+    public int purgeRecordContent() {
+        return timed("purgeRecordContent", () -> entityManager.createNativeQuery(PURGE_RECORD_CONTENT_QUERY)
+                .executeUpdate());
     }
 
     /**
-     * Returns iterator for all records belonging to given batch
+     * Converts the record table into a table partitioned on dataset, with
+     * a default partition holding all existing records, making way for
+     * {@link #createDataSetPartition(DataSet)}.
      * <p>
+     * This is a one-off step of its own, not run by the database migration,
+     * since it requires PostgreSQL 13 or later. The record table is locked
+     * exclusively while its indexes on id are built anew. Record IDs are then
+     * only kept unique within a dataset by constraint, across datasets by being
+     * drawn from a sequence, and lookups by ID alone probe every partition.
      * This method needs to run in a transaction.
      * </p>
      *
-     * @param batch batch
-     * @return batch iterator as ResultSet abstraction
+     * @return true if the record table was converted, false if already partitioned
+     * @throws PersistenceException on servers older than PostgreSQL 13
      */
-    public ResultSet<Record> getRecordsInBatch(Batch batch) {
-        final Query query = entityManager.createNamedQuery(Record.GET_RECORDS_IN_BATCH_QUERY_NAME)
-                .setParameter(1, batch.getId());
-        return new ResultSet<>(query, new RecordMapping());
+    public boolean partitionRecordTable() throws PersistenceException {
+        return timed("partitionRecordTable", () -> (Boolean) entityManager.createNativeQuery(PARTITION_RECORD_TABLE_QUERY)
+                .getSingleResult());
     }
 
     /**
-     * Returns iterator for all records belonging to given data set
+     * Moves the records of given dataset into a partition of their own.
+     * <p>
+     * The record table is partitioned on dataset, with a default partition
+     * holding the records of all datasets without a partition of their own.
+     * A dataset partition keeps the bloat caused by marking and sweeping a
+     * large dataset away from all other datasets, and queries restricted to
+     * the dataset only read its partition.
+     * </p>
      * <p>
+     * The default partition is locked until the transaction ends, blocking
+     * writes to all datasets without a partition of their own.
      * This method needs to run in a transaction.
      * </p>
      *
-     * @param dataSet data set
-     * @return batch iterator as ResultSet abstraction
+     * @param dataSet dataset
+     * @return name of the created partition
+     * @throws PersistenceException if the dataset already has a partition of its own,
+     * or if the record table is not partitioned, see {@link #partitionRecordTable()}
      */
-    public ResultSet<Record> getRecordsInDataSet(DataSet dataSet) {
-        final Query query = entityManager.createNamedQuery(Record.GET_RECORDS_IN_DATASET_QUERY_NAME)
-                .setParameter(1, dataSet.getId());
-        return new ResultSet<>(query, new RecordMapping());
+    public String createDataSetPartition(DataSet dataSet) throws PersistenceException {
+        return timed("createDataSetPartition", () -> (String) entityManager.createNativeQuery(CREATE_DATASET_PARTITION_QUERY)
+                .setParameter(1, dataSet.getId())
+                .getSingleResult());
     }
 
     /**
-     * Tries to lookup batch in repository either by batch ID or by batch key
+     * Removes all records of given dataset by dropping the partition created by
+     * {@link #createDataSetPartition(DataSet)}, which is much cheaper than
+     * deleting the records one by one.
+     * <p>
+     * Content references of the removed records are released, and the
+     * counters of the dataset are reset. The dataset itself is kept, new
+     * records are written to the default partition.
+     * This method needs to run in a transaction.
+     * </p>
      *
-     * @param value values placeholder
-     * @return managed Batch object if found
+     * @param dataSet dataset
+     * @return name of the dropped partition
+     * @throws PersistenceException if the dataset has no partition of its own
      */
-    public Optional<Batch> lookupBatch(Batch value) {
-        return lookupBatch(value, false);
+    public String dropDataSetPartition(DataSet dataSet) throws PersistenceException {
+        return timed("dropDataSetPartition", () -> (String) entityManager.createNativeQuery(DROP_DATASET_PARTITION_QUERY)
+                .setParameter(1, dataSet.getId())
+                .getSingleResult());
     }
 
-
-    public Optional<Batch> lookupBatch(Batch value, boolean readOnly) {
-        if (value != null) {
-            if (value.getId() > 0) {
-                return Optional.ofNullable(entityManager.find(Batch.class, value.getId(), Map.of(QueryHints.READ_ONLY, readOnly)));
-            } else if (value.getBatchKey() > 0) {
-                return entityManager.createNamedQuery(Batch.GET_BATCH_BY_KEY_QUERY_NAME, Batch.class)
-                        .setParameter("key", value.getBatchKey())
-                        .setMaxResults(1)
-                        .getResultList()
-                        .stream()
-                        .findFirst();
+    /**
+     * Returns all datasets of given submitter
+     * <p>
+     * The datasets of a submitter are found through a cache shared by all
+     * instances, see {@link #lookupDataSet(DataSet)}.
+     * </p>
+     *
+     * @param submitter agency ID of submitter
+     * @return list of managed datasets
+     */
+    public List<DataSet> getDataSetsBySubmitter(int submitter) {
+        return timed("getDataSetsBySubmitter", () -> {
+            validateDataSetCache();
+            final List<Integer> ids = dataSetCache.getIdsBySubmitter(submitter);
+            if (ids != null) {
+                final List<DataSet> dataSets = new ArrayList<>(ids.size());
+                for (Integer id : ids) {
+                    final DataSet dataSet = entityManager.find(DataSet.class, id);
+                    if (dataSet == null || dataSet.getAgencyId() != submitter) {
+                        // Changed since cached, and not yet seen by the cache
+                        return findDataSetsBySubmitter(submitter);
+                    }
+                    dataSets.add(dataSet);
+                }
+                return dataSets;
             }
-        }
-        return Optional.empty();
+            return findDataSetsBySubmitter(submitter);
+        });
     }
 
-    /**
-     * Lookup a list of records by their localId, belonging to a dataset
-     */
-    public List<Record> lookupRecords(int dataset, List<String> localIds) {
-        if(localIds.isEmpty()) return List.of();
-        return entityManager.createNamedQuery(Record.GET_RECORDS_BY_LOCALIDS_QUERY_NAME, Record.class)
-                .setParameter("dataset", dataset)
-                .setParameter("localIds", localIds)
-                .getResultList();
+    private List<DataSet> findDataSetsBySubmitter(int submitter) {
+        return dataSetCache.putBySubmitter(submitter, entityManager.createQuery(GET_DATASETS_BY_SUBMITTER_QUERY, DataSet.class)
+                .setParameter(1, submitter)
+                .getResultList());
     }
 
     /**
-     * Tries to lookup record in repository either by record ID or by (dataset,localId) combination
-     *
-     * @param value values placeholder
-     * @return managed Record object if found
+     * @return counters of the dataset cache shared by all instances
      */
-    public Optional<Record> lookupRecord(Record value) {
-        Optional<Record> record = Optional.empty();
-        if (value != null) {
-            if (value.getId() > 0) {
-                record = Optional.ofNullable(entityManager.find(Record.class, value.getId()));
-            } else if (value.getLocalId() != null && value.getDataset() > 0) {
-                record = entityManager.createNamedQuery(Record.GET_RECORD_BY_LOCALID_QUERY_NAME, Record.class)
-                        .setParameter("dataset", value.getDataset())
-                        .setParameter("localId", value.getLocalId())
-                        .setMaxResults(1)
-                        .getResultList()
-                        .stream()
-                        .findFirst();
-            }
-        }
+    public CacheStatistics getDataSetCacheStatistics() {
+        return dataSetCache.getStatistics();
+    }
 
-        // Other systems may update the record so we need to refresh the object to make sure the current
-        // version is returned.
-        if( record.isPresent() && record.get() != null ) {
-            entityManager.refresh(record.get());
+    /* Invalidating before the change is committed would let concurrent
+       lookups cache the dataset version from before it */
+    private void invalidateDataSetCacheOnCompletion() {
+        if (transactionSynchronizationRegistry == null) {
+            // Not managed by a container
+            dataSetCache.invalidate();
+            return;
         }
+        transactionSynchronizationRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
 
-        return record;
+            @Override
+            public void afterCompletion(int status) {
+                dataSetCache.invalidate();
+            }
+        });
     }
 
-    public List<DataSetSummary> getDataSetSummary() {
-        return entityManager.createQuery(GET_DATASET_SUMMARY_QUERY, DataSetSummary.class)
-                .getResultList();
+    private void validateDataSetCache() {
+        dataSetCache.validate(() -> ((Number) entityManager.createNativeQuery(GET_DATASET_VERSION_QUERY)
+                .getSingleResult()).longValue());
     }
 
-    public DataSetSummary getDataSetSummaryByDataSetId(int dataSetId) {
-        return entityManager.createQuery(GET_DATASET_SUMMARY_BY_DATASET_ID_QUERY, DataSetSummary.class)
-                .setParameter(1, dataSetId)
-                .getResultList()
-                .stream()
-                .findFirst()
-                .orElse(null);
+    @SuppressWarnings("unchecked")
+    private static List<DataSetSummary> toDataSetSummaries(List<?> resultList) {
+        final List<DataSetSummary> summaries = new ArrayList<>(resultList.size());
+        for (Object[] row : (List<Object[]>) resultList) {
+            summaries.add(new DataSetSummary(
+                    (String) row[0],
+                    ((Number) row[1]).longValue(),
+                    ((Number) row[2]).longValue(),
+                    ((Number) row[3]).longValue(),
+                    ((Number) row[4]).longValue(),
+                    (Timestamp) row[5],
+                    ((Number) row[6]).intValue()));
+        }
+        return summaries;
     }
 
-    public List<DataSet> getDataSetsBySubmitter(int submitter) {
-        return entityManager.createQuery(GET_DATASETS_BY_SUBMITTER_QUERY, DataSet.class)
-                .setParameter(1, submitter)
-                .getResultList();
+    private Batch persist(Batch batch) {
+        entityManager.persist(batch);
+        entityManager.flush();
+        entityManager.refresh(batch);
+        return batch;
     }
 
     private int mark(Batch batch) {
-        return entityManager.createNamedQuery(Record.MARK_QUERY_NAME)
+        return recordsUpdated("mark", batch.getDataset(), entityManager.createNamedQuery(Record.MARK_QUERY_NAME)
                 .setParameter("dataset", batch.getDataset())
-                .executeUpdate();
+                .executeUpdate());
     }
 
     private int sweep(Batch batch) {
-        return entityManager.createNamedQuery(Record.SWEEP_QUERY_NAME)
+        final String queryName = batch.getSweepMode() == Batch.SweepMode.GENERATION
+                ? Record.SWEEP_GENERATION_QUERY_NAME : Record.SWEEP_QUERY_NAME;
+        return recordsUpdated("sweep", batch.getDataset(), entityManager.createNamedQuery(queryName)
                 .setParameter("batch", batch.getId())
                 .setParameter("dataset", batch.getDataset())
                 .setParameter("now", new Date())
-                .executeUpdate();
+                .executeUpdate());
+    }
+
+    /* Every path completing a batch compacts the counters of its dataset */
+    private Batch complete(Batch batch) {
+        compactDataSetCounters(batch.getDataset());
+        return batch.withTimeOfCompletion(new Timestamp(new Date().getTime()));
+    }
+
+    private static boolean isMarking(Batch batch) {
+        return batch.getType() == Batch.Type.TOTAL && batch.getSweepMode() != Batch.SweepMode.GENERATION;
     }
 
     private int undoMark(Batch batch) {
-        return entityManager.createNamedQuery(Record.UNDO_MARK_QUERY_NAME)
+        return recordsUpdated("undoMark", batch.getDataset(), entityManager.createNamedQuery(Record.UNDO_MARK_QUERY_NAME)
                 .setParameter("dataset", batch.getDataset())
-                .executeUpdate();
+                .executeUpdate());
+    }
+
+    private static <T extends Number> T recordsUpdated(String update, int dataset, T records) {
+        metrics.recordsUpdated(update, dataset, records.longValue());
+        return records;
+    }
+
+    private static long startTiming() {
+        return metrics == TickleRepoMetrics.NONE ? NOT_TIMED : System.nanoTime();
+    }
+
+    private static void logIfSlow(String operation, Statement statement, long startTime) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        if (millis >= SLOW_QUERY_THRESHOLD_IN_MILLIS && SLOW_QUERY_LOGGER.isInfoEnabled()) {
+            SLOW_QUERY_LOGGER.info("{} took {} ms: {}", operation, millis, statement);
+        }
+    }
+
+    private static void stopTiming(String operation, long startTime) {
+        if (startTime != NOT_TIMED) {
+            metrics.operationCompleted(operation, System.nanoTime() - startTime);
+        }
+    }
+
+    /* Times given operation. Operations called by an operation already being
+       timed on the same thread, directly or through the business object, are
+       part of the calling operation and not timed separately. */
+    private static <T, E extends Exception> T timed(String operation, Operation<T, E> body) throws E {
+        if (metrics == TickleRepoMetrics.NONE || TIMED_OPERATION.get() != null) {
+            return body.run();
+        }
+        TIMED_OPERATION.set(operation);
+        final long startTime = System.nanoTime();
+        try {
+            return body.run();
+        } finally {
+            TIMED_OPERATION.remove();
+            metrics.operationCompleted(operation, System.nanoTime() - startTime);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /* Chunked operations must run without a transaction for their chunks to
+       be committed separately, container managed transactions of the
+       remaining work are obtained by calling through the business object. */
+    private TickleRepo self() {
+        if (sessionContext != null) {
+            return sessionContext.getBusinessObject(TickleRepo.class);
+        }
+        return this;
+    }
+
+    private Connection getConnection() {
+        final Connection connection = entityManager.unwrap(Connection.class);
+        if (connection == null) {
+            throw new IllegalStateException("Connection is null - maybe not in scope of a transaction?");
+        }
+        return connection;
+    }
+
+    /**
+     * Ways of purging deleted records, see {@link #purgeDeletedRecords(DataSet, PurgeMode, ChunkedUpdate)}
+     */
+    public enum PurgeMode {
+        /**
+         * Keeps records as tombstones without content
+         */
+        STRIP_CONTENT,
+        /**
+         * Removes records
+         */
+        DELETE
     }
 
     /**
@@ -334,19 +1662,50 @@ public class TickleRepo {
      */
     public class ResultSet<T> implements Iterable<T>, AutoCloseable {
         private final int BUFFER_SIZE = 1000;
+        /* Records are fetched in windows sized by their average content size,
+           starting small, since content size is unknown until rows are read */
+        private final int INITIAL_RECORD_BUFFER_SIZE = 10;
+        private final long RECORD_BUFFER_BYTES = 32L * 1024 * 1024;
 
         private final PreparedStatement statement;
         private final java.sql.ResultSet resultSet;
         private final Function<java.sql.ResultSet, T> resultSetMapping;
-        private final boolean hasRows;
+        private final String operation;
+        private final long timeOfExecution;
+        private long rows;
+        private int rowsLeftInWindow;
+        private boolean closed;
 
-        ResultSet(Query query, Function<java.sql.ResultSet, T> resultSetMapping) {
+        /* Peeked row state, the underlying result set is only ever advanced
+           by next(), since isLast() and friends may force the driver to
+           fetch ahead of the current window. */
+        private T nextRow;
+        private boolean hasNextRow;
+        private boolean exhausted;
+
+        ResultSet(String operation, Query query, Function<java.sql.ResultSet, T> resultSetMapping) {
+            this.resultSetMapping = resultSetMapping;
             try {
                 this.statement = createStatement(query);
-                this.resultSet = statement.executeQuery();
-                this.resultSetMapping = resultSetMapping;
-                // This may not be supported by all drivers and/or query types
-                this.hasRows = resultSet.isBeforeFirst();
+                this.resultSet = executeQuery(operation);
+                this.operation = operation;
+                this.timeOfExecution = startTiming();
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        }
+
+        ResultSet(String operation, String sql, Function<java.sql.ResultSet, T> resultSetMapping,
+                  Object... parameters) {
+            this.resultSetMapping = resultSetMapping;
+            try {
+                this.statement = prepareStatement(sql);
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                this.resultSet = executeQuery(operation);
+                this.operation = operation;
+                this.timeOfExecution = startTiming();
             } catch (SQLException e) {
                 throw new PersistenceException(e);
             }
@@ -363,10 +1722,7 @@ public class TickleRepo {
                 on pulling in the entire result set upfront nonetheless.
             */
 
-            final Session session = entityManager.unwrap(JpaEntityManager.class).getActiveSession();
-            final DatabaseQuery databaseQuery = query.unwrap(EJBQueryImpl.class).getDatabaseQuery();
-            databaseQuery.prepareCall(session, new DatabaseRecord());
-            String queryString = databaseQuery.getSQLString();
+            String queryString = getSQLString(query);
             final int limit = query.getMaxResults();
             if (limit > 0 && limit != Integer.MAX_VALUE) {
                 queryString += " LIMIT " + limit;
@@ -375,15 +1731,8 @@ public class TickleRepo {
             if (offset > 0) {
                 queryString += " OFFSET " + offset;
             }
-            LOGGER.info(queryString);
-
-            final Connection connection = entityManager.unwrap(Connection.class);
-            if (connection == null) {
-                throw new IllegalStateException("Connection is null - maybe not in scope of a transaction?");
-            }
             try {
-                final PreparedStatement statement = connection.prepareStatement(queryString);
-                statement.setFetchSize(BUFFER_SIZE);
+                final PreparedStatement statement = prepareStatement(queryString);
                 final Set<Parameter<?>> parameters = query.getParameters();
                 for (Parameter<?> parameter : parameters) {
                     if (parameter.getName() != null) {
@@ -400,34 +1749,131 @@ public class TickleRepo {
             }
         }
 
+        private java.sql.ResultSet executeQuery(String operation) throws SQLException {
+            final long startTime = System.nanoTime();
+            final java.sql.ResultSet resultSet = statement.executeQuery();
+            logIfSlow(operation, statement, startTime);
+            return resultSet;
+        }
+
+        /* The SQL of a named query does not depend on its parameter values,
+           so it is only translated on first use */
+        private String getSQLString(Query query) {
+            final DatabaseQuery databaseQuery = query.unwrap(EJBQueryImpl.class).getDatabaseQuery();
+            final String name = databaseQuery.getName();
+            if (name != null) {
+                final String sql = NAMED_QUERY_SQL.get(name);
+                if (sql != null) {
+                    return sql;
+                }
+            }
+            final Session session = entityManager.unwrap(JpaEntityManager.class).getActiveSession();
+            databaseQuery.prepareCall(session, new DatabaseRecord());
+            final String sql = databaseQuery.getSQLString();
+            if (name != null) {
+                NAMED_QUERY_SQL.put(name, sql);
+            }
+            return sql;
+        }
+
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            LOGGER.debug(sql);
+            final PreparedStatement statement = getConnection().prepareStatement(sql);
+            // Prepared on the server by first use, reused by later statements of the same SQL on the connection
+            statement.unwrap(PGStatement.class).setPrepareThreshold(PREPARE_THRESHOLD);
+            rowsLeftInWindow = resultSetMapping instanceof RecordMapping ? INITIAL_RECORD_BUFFER_SIZE : BUFFER_SIZE;
+            statement.setFetchSize(rowsLeftInWindow);
+            return statement;
+        }
+
+        /**
+         * Returns forward-only iterator over the rows of this result set.
+         * <p>
+         * The result set can only be iterated once, all iterators returned
+         * share the same position.
+         * </p>
+         *
+         * @return iterator
+         */
         @Override
         public Iterator<T> iterator() {
             return new Iterator<T>() {
                 @Override
                 public boolean hasNext() {
-                    try {
-                        return hasRows && !resultSet.isLast();
-                    } catch (SQLException e) {
-                        throw new PersistenceException(e);
-                    }
+                    return peek();
                 }
 
                 @Override
                 public T next() {
-                    try {
-                        if (resultSet.next()) {
-                            return resultSetMapping.apply(resultSet);
-                        }
-                        return null;
-                    } catch (SQLException e) {
-                        throw new PersistenceException(e);
+                    if (!peek()) {
+                        throw new NoSuchElementException();
                     }
+                    final T row = nextRow;
+                    nextRow = null;
+                    hasNextRow = false;
+                    return row;
                 }
             };
         }
 
+        /**
+         * Returns lazily evaluated stream over the rows of this result set.
+         * <p>
+         * Rows are fetched from the database in windows of the fetch size as the
+         * stream is consumed, and closing the stream closes this result set.
+         * </p>
+         *
+         * @return stream of rows
+         */
+        public Stream<T> stream() {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                    Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(this::close);
+        }
+
+        private boolean peek() {
+            if (!hasNextRow && !exhausted) {
+                try {
+                    if (resultSet.next()) {
+                        nextRow = resultSetMapping.apply(resultSet);
+                        hasNextRow = true;
+                        rows++;
+                        if (--rowsLeftInWindow == 0) {
+                            resizeWindow();
+                        }
+                    } else {
+                        exhausted = true;
+                    }
+                } catch (SQLException e) {
+                    throw new PersistenceException(e);
+                }
+            }
+            return hasNextRow;
+        }
+
+        /* Called when the last row fetched by the driver has been read, the
+           fetch size of the result set applies to the next window fetched */
+        private void resizeWindow() throws SQLException {
+            if (resultSetMapping instanceof RecordMapping) {
+                final long averageRowBytes = Math.max(1, ((RecordMapping) resultSetMapping).getContentBytes() / rows);
+                rowsLeftInWindow = (int) Math.max(1, Math.min(BUFFER_SIZE, RECORD_BUFFER_BYTES / averageRowBytes));
+                resultSet.setFetchSize(rowsLeftInWindow);
+            } else {
+                rowsLeftInWindow = BUFFER_SIZE;
+            }
+        }
+
         @Override
         public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (timeOfExecution != NOT_TIMED) {
+                metrics.cursorClosed(operation, System.nanoTime() - timeOfExecution);
+                metrics.recordsStreamed(operation, rows, resultSetMapping instanceof RecordMapping
+                        ? ((RecordMapping) resultSetMapping).getContentBytes() : 0);
+            }
             try {
                 if (resultSet != null) {
                     resultSet.close();
@@ -443,20 +1889,92 @@ public class TickleRepo {
 
     /**
      * Maps result set of an SQL query to a {@link Record}
+     * <p>
+     * Shared content is read from the DATA column of a join with
+     * the record_content table, if present in the result set.
+     * </p>
      */
-    private static class RecordMapping implements Function<java.sql.ResultSet, Record> {
+    static class RecordMapping implements Function<java.sql.ResultSet, Record> {
+        /* Selects records with their shared content, to which conditions are appended */
+        static final String SELECT_RECORDS =
+                "SELECT record.*, record_content.data FROM record" +
+                " LEFT JOIN record_content ON record_content.digest = record.contentDigest";
+
         private final RecordStatusConverter recordStatusConverter = new RecordStatusConverter();
+        private final ContentCodecConverter contentCodecConverter = new ContentCodecConverter();
+        private Boolean hasSharedContent;
+        private long contentBytes;
 
         @Override
         public Record apply(java.sql.ResultSet resultSet) {
             if (resultSet != null) {
                 try {
+                    byte[] storedContent = resultSet.getBytes("CONTENT");
+                    if (storedContent == null && hasSharedContent(resultSet)) {
+                        storedContent = resultSet.getBytes("DATA");
+                    }
+                    if (storedContent != null) {
+                        contentBytes += storedContent.length;
+                    }
                     return new Record()
                             .withId(resultSet.getInt("ID"))
                             .withBatch(resultSet.getInt("BATCH"))
                             .withChecksum(resultSet.getString("CHECKSUM"))
-                            .withContent(resultSet.getBytes("CONTENT"))
+                            .withStoredContent(storedContent,
+                                    contentCodecConverter.convertToEntityAttribute(resultSet.getString("CONTENTCODEC")))
+                            .withDataset(resultSet.getInt("DATASET"))
+                            .withGeneration(resultSet.getInt("GENERATION"))
+                            .withLocalId(resultSet.getString("LOCALID"))
+                            .withStatus(recordStatusConverter.convertToEntityAttribute(
+                                    resultSet.getString("STATUS")))
+                            .withTimeOfCreation(resultSet.getTimestamp("TIMEOFCREATION"))
+                            .withTimeOfLastModification(resultSet.getTimestamp("TIMEOFLASTMODIFICATION"))
+                            .withTrackingId(resultSet.getString("TRACKINGID"));
+                } catch (SQLException e) {
+                    throw new PersistenceException(e);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return number of bytes of stored content mapped so far
+         */
+        long getContentBytes() {
+            return contentBytes;
+        }
+
+        private boolean hasSharedContent(java.sql.ResultSet resultSet) throws SQLException {
+            if (hasSharedContent == null) {
+                hasSharedContent = false;
+                final ResultSetMetaData metaData = resultSet.getMetaData();
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    if ("DATA".equalsIgnoreCase(metaData.getColumnLabel(i))) {
+                        hasSharedContent = true;
+                        break;
+                    }
+                }
+            }
+            return hasSharedContent;
+        }
+    }
+
+    /**
+     * Maps result set of an SQL query to a {@link RecordHeader}
+     */
+    static class RecordHeaderMapping implements Function<java.sql.ResultSet, RecordHeader> {
+        private final RecordStatusConverter recordStatusConverter = new RecordStatusConverter();
+
+        @Override
+        public RecordHeader apply(java.sql.ResultSet resultSet) {
+            if (resultSet != null) {
+                try {
+                    return new RecordHeader()
+                            .withId(resultSet.getInt("ID"))
+                            .withBatch(resultSet.getInt("BATCH"))
+                            .withChecksum(resultSet.getString("CHECKSUM"))
                             .withDataset(resultSet.getInt("DATASET"))
+                            .withGeneration(resultSet.getInt("GENERATION"))
                             .withLocalId(resultSet.getString("LOCALID"))
                             .withStatus(recordStatusConverter.convertToEntityAttribute(
                                     resultSet.getString("STATUS")))
@@ -474,79 +1992,99 @@ public class TickleRepo {
     /**
      * checks if the given dataSet is persisted in the underlying database
      *
+     * <p>
+     * Datasets looked up by ID are found through the entity manager. Datasets
+     * looked up by name are found by an ID cached by name in a cache shared by
+     * all instances. Changes made through {@link #createDataSet(DataSet)} are
+     * seen by the cache as soon as they are committed, any other changes, also
+     * those made by other nodes, after at most
+     * {@link DataSetCache#DEFAULT_MAXIMUM_STALENESS}.
+     * </p>
+     *
      * @param dataset to search for
-     * @return Optional.empty() if the dataSet is not persisted, otherwise the persisted dataSet.
+     * @return Optional.empty() if the dataSet is not persisted, otherwise the managed persisted dataSet.
      */
     public Optional<DataSet> lookupDataSet(DataSet dataset) {
-        if (dataset != null) {
-            if (dataset.getId() > 0) {
-                return Optional.ofNullable(entityManager.find(DataSet.class, dataset.getId()));
-            } else if (dataset.getName() != null) {
-                return entityManager.createNamedQuery(DataSet.GET_DATASET_BY_NAME_QUERY_NAME, DataSet.class)
-                        .setParameter("name", dataset.getName())
-                        .setMaxResults(1)
-                        .getResultList()
-                        .stream()
-                        .findFirst();
+        return timed("lookupDataSet", () -> {
+            if (dataset != null) {
+                if (dataset.getId() > 0) {
+                    return Optional.ofNullable(entityManager.find(DataSet.class, dataset.getId()));
+                } else if (dataset.getName() != null) {
+                    validateDataSetCache();
+                    final Integer id = dataSetCache.getIdByName(dataset.getName());
+                    if (id != null) {
+                        final DataSet found = entityManager.find(DataSet.class, id);
+                        if (found != null && dataset.getName().equals(found.getName())) {
+                            return Optional.of(found);
+                        }
+                        // Changed since cached, and not yet seen by the cache
+                    }
+                    return entityManager.createNamedQuery(DataSet.GET_DATASET_BY_NAME_QUERY_NAME, DataSet.class)
+                            .setParameter("name", dataset.getName())
+                            .setMaxResults(1)
+                            .getResultList()
+                            .stream()
+                            .findFirst()
+                            .map(dataSetCache::putByName);
+                }
             }
-        }
-        return Optional.empty();
+            return Optional.empty();
+        });
     }
 
     public List<DataSet> lookupDataSetByRecord(Record record) {
-        if (record != null && record.getLocalId() != null) {
-            return new ArrayList<>(entityManager.createNamedQuery(DataSet.GET_DATASET_BY_RECORD_LOCALID_NAME, DataSet.class)
-                    .setParameter("localId", record.getLocalId())
-                    .getResultList());
-        }
+        return timed("lookupDataSetByRecord", () -> {
+            if (record != null && record.getLocalId() != null) {
+                return new ArrayList<>(entityManager.createNamedQuery(DataSet.GET_DATASET_BY_RECORD_LOCALID_NAME, DataSet.class)
+                        .setParameter("localId", record.getLocalId())
+                        .getResultList());
+            }
 
-        return Collections.emptyList();
+            return Collections.emptyList();
+        });
     }
 
     /**
-     * Returns an estimate of the number of records in the given dataset or
-     * the exact number if the estimate is below {@link #DATASET_SIZE_ESTIMATE_THRESHOLD}
+     * Returns the number of records in the given dataset as kept by the
+     * dataset counters, see {@link #getDataSetSummary()}.
+     * <p>
+     * The cost is independent of the size of the dataset, and the number
+     * is exact unless the counters have been corrupted, see
+     * {@link #verifyDataSetCounters()}. Use {@link #sizeOf(DataSet)} for a
+     * count of the records themselves.
+     * </p>
      *
      * @param dataSet dataset
-     * @return estimated number of records
+     * @return number of records
      */
     public int estimateSizeOf(DataSet dataSet) {
-        if (dataSet != null) {
-            final Optional<String> estimate = entityManager.createNamedQuery(
-                    Record.ESTIMATED_NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME, String.class)
-                    .setParameter(1, dataSet.getId())
-                    .getResultList().stream()
-                    .filter(row -> row.contains(" on record "))
-                    .findFirst();
-            if (estimate.isPresent()) {
-                final Pattern rowsPattern = Pattern.compile(" rows=(\\d+) ");
-                final Matcher rowsMatcher = rowsPattern.matcher(estimate.get());
-                if (rowsMatcher.find()) {
-                    final int sizeEstimate = Integer.parseInt(rowsMatcher.group(1));
-                    if (sizeEstimate < DATASET_SIZE_ESTIMATE_THRESHOLD) {
-                        return sizeOf(dataSet);
-                    }
-                    return sizeEstimate;
-                }
+        return timed("estimateSizeOf", () -> {
+            if (dataSet != null) {
+                return Math.toIntExact(((Number) entityManager.createNativeQuery(GET_DATASET_SIZE_QUERY)
+                        .setParameter(1, dataSet.getId())
+                        .getSingleResult()).longValue());
             }
-        }
-        return 0;
+            return 0;
+        });
     }
 
     /**
-     * Returns the number of records in the given dataset
+     * Returns the number of records in the given dataset by counting them,
+     * which requires a scan of all records of the dataset
      *
      * @param dataSet dataset
      * @return number of records
      */
     public int sizeOf(DataSet dataSet) {
-        if (dataSet != null) {
-            return Math.toIntExact(entityManager.createNamedQuery(
-                    Record.NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME, Long.class)
-                    .setParameter(1, dataSet.getId())
-                    .getSingleResult());
-        }
-        return 0;
+        return timed("sizeOf", () -> {
+            if (dataSet != null) {
+                return Math.toIntExact(entityManager.createNamedQuery(
+                        Record.NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME, Long.class)
+                        .setParameter(1, dataSet.getId())
+                        .getSingleResult());
+            }
+            return 0;
+        });
     }
 
     /**
@@ -557,13 +2095,41 @@ public class TickleRepo {
      */
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public DataSet createDataSet(DataSet dataSet) {
-        entityManager.persist(dataSet);
-        entityManager.flush();
-        entityManager.refresh(dataSet);
-        return dataSet;
+        return timed("createDataSet", () -> {
+            entityManager.persist(dataSet);
+            entityManager.flush();
+            entityManager.refresh(dataSet);
+            invalidateDataSetCacheOnCompletion();
+            return dataSet;
+        });
     }
 
     public EntityManager getEntityManager() {
         return entityManager;
     }
+
+    /* Counts the bytes written through it, for the export metrics */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+/**
+ * Receiver of measurements of {@link TickleRepo} operations, see
+ * {@link TickleRepo#setMetrics(TickleRepoMetrics)}.
+ * <p>
+ * Implementations typically forward the measurements to a metrics library,
+ * for example recording operation durations in a histogram or timer tagged
+ * by operation name. Methods are called on the thread performing the
+ * operation, so they must be thread safe, fast and must not throw.
+ * </p>
+ * <p>
+ * Operations are named after the {@link TickleRepo} method performing them.
+ * </p>
+ */
+public interface TickleRepoMetrics {
+    /**
+     * Metrics disabled, no measurements are taken
+     */
+    TickleRepoMetrics NONE = new TickleRepoMetrics() {};
+
+    /**
+     * Called when an operation returns, successfully or not.
+     * <p>
+     * For operations returning a {@link TickleRepo.ResultSet} the duration
+     * is that of executing the query, see {@link #cursorClosed(String, long)}
+     * for the time taken to iterate the result. Operations called by another
+     * operation, like abortBatch closing the batch, are part of the calling
+     * operation and not reported separately.
+     * </p>
+     *
+     * @param operation       name of operation, for example createBatch
+     * @param durationInNanos time spent in the operation
+     */
+    default void operationCompleted(String operation, long durationInNanos) {}
+
+    /**
+     * Called when records of a dataset have been updated in bulk
+     *
+     * @param update  mark, undoMark, sweep, sweepOutdated, purgeDeleted or moveContent
+     * @param dataset ID of dataset
+     * @param records number of records updated
+     */
+    default void recordsUpdated(String update, int dataset, long records) {}
+
+    /**
+     * Called when records have been read by an operation, that is when its
+     * {@link TickleRepo.ResultSet} is closed, or when it returns for operations
+     * not returning a result set
+     *
+     * @param operation    name of operation, for example getRecordsInDataSet
+     * @param records      number of records read
+     * @param contentBytes number of bytes of record content read, as stored,
+     *                     for exports the number of bytes written
+     */
+    default void recordsStreamed(String operation, long records, long contentBytes) {}
+
+    /**
+     * Called when a {@link TickleRepo.ResultSet} is closed
+     *
+     * @param operation       name of operation returning the result set
+     * @param lifetimeInNanos time from the query was executed until the result set was closed
+     */
+    default void cursorClosed(String operation, long lifetimeInNanos) {}
+}
@@ -36,6 +36,22 @@ public class Batch {
         INCREMENTAL
     }
 
+    /**
+     * How records not seen by a TOTAL batch are found when it is closed
+     */
+    public enum SweepMode {
+        /**
+         * All active records in the dataset are set to RESET when the batch
+         * is created, records still RESET when the batch is closed are deleted
+         */
+        MARK,
+        /**
+         * Records remember the ID of the latest batch in which they were seen,
+         * records not seen since before the batch are deleted when it is closed
+         */
+        GENERATION
+    }
+
     @Id
     @SequenceGenerator(
             name = "batch_id_seq",
@@ -53,6 +69,9 @@ public class Batch {
     @Convert(converter = BatchTypeConverter.class)
     private Type type;
 
+    @Convert(converter = SweepModeConverter.class)
+    private SweepMode sweepMode = SweepMode.MARK;
+
     @Column(insertable = false, updatable = false)
     private Timestamp timeOfCreation;
 
@@ -98,6 +117,15 @@ public class Batch {
         return this;
     }
 
+    public SweepMode getSweepMode() {
+        return sweepMode;
+    }
+
+    public Batch withSweepMode(SweepMode sweepMode) {
+        this.sweepMode = sweepMode;
+        return this;
+    }
+
     public Timestamp getTimeOfCreation() {
         return timeOfCreation;
     }
@@ -132,6 +160,7 @@ public class Batch {
                 ", dataset=" + dataset +
                 ", batchKey=" + batchKey +
                 ", type=" + type +
+                ", sweepMode=" + sweepMode +
                 ", timeOfCreation=" + timeOfCreation +
                 ", timeOfCompletion=" + timeOfCompletion +
                 ", metadata='" + metadata + '\'' +
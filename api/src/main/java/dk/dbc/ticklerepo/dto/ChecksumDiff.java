@@ -0,0 +1,54 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import java.util.Set;
+
+/**
+ * Outcome of comparing record checksums with those stored in a data set,
+ * classified like an ingest of the same records would classify them
+ */
+public class ChecksumDiff {
+    private final Set<String> newLocalIds;
+    private final Set<String> changedLocalIds;
+    private final Set<String> unchangedLocalIds;
+
+    public ChecksumDiff(Set<String> newLocalIds, Set<String> changedLocalIds, Set<String> unchangedLocalIds) {
+        this.newLocalIds = newLocalIds;
+        this.changedLocalIds = changedLocalIds;
+        this.unchangedLocalIds = unchangedLocalIds;
+    }
+
+    /**
+     * @return local IDs of records not in the data set
+     */
+    public Set<String> getNewLocalIds() {
+        return newLocalIds;
+    }
+
+    /**
+     * @return local IDs of records in the data set with a different checksum
+     */
+    public Set<String> getChangedLocalIds() {
+        return changedLocalIds;
+    }
+
+    /**
+     * @return local IDs of records in the data set with the same checksum
+     */
+    public Set<String> getUnchangedLocalIds() {
+        return unchangedLocalIds;
+    }
+
+    @Override
+    public String toString() {
+        return "ChecksumDiff{" +
+                "new=" + newLocalIds.size() +
+                ", changed=" + changedLocalIds.size() +
+                ", unchanged=" + unchangedLocalIds.size() +
+                '}';
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encoding of record content as stored in the database
+ */
+public enum ContentCodec {
+    /**
+     * Content is stored as is
+     */
+    NONE {
+        @Override
+        public byte[] encode(byte[] content) {
+            return content;
+        }
+
+        @Override
+        public byte[] decode(byte[] storedContent) {
+            return storedContent;
+        }
+
+        @Override
+        public InputStream decodeStream(InputStream storedContent) {
+            return storedContent;
+        }
+    },
+    /**
+     * Content is stored compressed by the zlib deflate format
+     */
+    DEFLATE {
+        @Override
+        public byte[] encode(byte[] content) {
+            if (content == null) {
+                return null;
+            }
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(content.length / 4, 64));
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decode(byte[] storedContent) {
+            if (storedContent == null) {
+                return null;
+            }
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(storedContent);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(storedContent.length * 4);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                while (!inflater.finished()) {
+                    final int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IllegalStateException("Stored content is truncated");
+                    }
+                    out.write(buffer, 0, inflated);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Stored content is not in deflate format", e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public InputStream decodeStream(InputStream storedContent) {
+            return new InflaterInputStream(storedContent, new Inflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * @param content content to encode
+     * @return content as stored
+     */
+    public abstract byte[] encode(byte[] content);
+
+    /**
+     * @param storedContent content as stored
+     * @return decoded content
+     * @throws IllegalStateException if stored content can not be decoded
+     */
+    public abstract byte[] decode(byte[] storedContent) throws IllegalStateException;
+
+    /**
+     * @param storedContent stream of content as stored, closed when the returned stream is closed
+     * @return stream of decoded content, throwing {@link java.util.zip.ZipException} on read
+     * if stored content can not be decoded
+     */
+    public abstract InputStream decodeStream(InputStream storedContent);
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import org.postgresql.util.PGobject;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import java.sql.SQLException;
+
+@Converter
+public class ContentCodecConverter implements AttributeConverter<ContentCodec, Object> {
+    @Override
+    public Object convertToDatabaseColumn(ContentCodec contentCodec) {
+        String contentCodecValue = null;
+        if (contentCodec != null) {
+            contentCodecValue = contentCodec.name();
+        }
+
+        final PGobject pgObject = new PGobject();
+        pgObject.setType("content_codec");
+        try {
+            pgObject.setValue(contentCodecValue);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return pgObject;
+    }
+
+    @Override
+    public ContentCodec convertToEntityAttribute(Object dbValue) {
+        if (dbValue == null) {
+            throw new IllegalArgumentException("dbValue can not be null");
+        }
+        switch ((String) dbValue) {
+            case "NONE":
+                return ContentCodec.NONE;
+            case "DEFLATE":
+                return ContentCodec.DEFLATE;
+            default:
+                return null;
+        }
+    }
+}
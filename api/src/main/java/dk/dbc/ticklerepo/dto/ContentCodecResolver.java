@@ -0,0 +1,53 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import org.eclipse.persistence.config.DescriptorCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.UnitOfWork;
+
+/**
+ * Encodes the content of records written through JPA by the content codec
+ * of their dataset, see {@link Record#withContent(byte[])}.
+ * <p>
+ * JPA callbacks may not query, so the dataset is read through the session
+ * of the event, outside of the unit of work being written.
+ * </p>
+ */
+public class ContentCodecResolver extends DescriptorEventAdapter implements DescriptorCustomizer {
+    @Override
+    public void customize(ClassDescriptor descriptor) {
+        descriptor.getEventManager().addListener(this);
+    }
+
+    @Override
+    public void prePersist(DescriptorEvent event) {
+        resolve(event);
+    }
+
+    @Override
+    public void preUpdate(DescriptorEvent event) {
+        resolve(event);
+    }
+
+    private static void resolve(DescriptorEvent event) {
+        final Record record = (Record) event.getSource();
+        if (!record.isContentCodecPending()) {
+            return;
+        }
+        Session session = event.getSession();
+        if (session instanceof UnitOfWork) {
+            session = ((UnitOfWork) session).getParent();
+        }
+        final DataSet dataSet = (DataSet) session.readObject(DataSet.class,
+                new ExpressionBuilder().get("id").equal(record.getDataset()));
+        record.resolveContentCodec(dataSet != null ? dataSet.getContentCodec() : ContentCodec.NONE);
+    }
+}
@@ -6,6 +6,7 @@
 package dk.dbc.ticklerepo.dto;
 
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
@@ -45,6 +46,11 @@ public class DataSet {
     private String displayName;
     private int agencyId;
 
+    @Convert(converter = ContentCodecConverter.class)
+    private ContentCodec contentCodec = ContentCodec.NONE;
+
+    private Integer deletedRecordRetentionDays;
+
     public int getId() {
         return id;
     }
@@ -81,6 +87,31 @@ public class DataSet {
         return this;
     }
 
+    /**
+     * @return codec to be used for content of records written to this dataset
+     */
+    public ContentCodec getContentCodec() {
+        return contentCodec;
+    }
+
+    public DataSet withContentCodec(ContentCodec contentCodec) {
+        this.contentCodec = contentCodec;
+        return this;
+    }
+
+    /**
+     * @return number of days deleted records of this dataset are retained before
+     * they may be purged, or null if they are retained forever
+     */
+    public Integer getDeletedRecordRetentionDays() {
+        return deletedRecordRetentionDays;
+    }
+
+    public DataSet withDeletedRecordRetentionDays(Integer deletedRecordRetentionDays) {
+        this.deletedRecordRetentionDays = deletedRecordRetentionDays;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "DataSet{" +
@@ -88,6 +119,8 @@ public class DataSet {
                 ", name='" + name + '\'' +
                 ", displayName='" + displayName + '\'' +
                 ", agencyId=" + agencyId +
+                ", contentCodec=" + contentCodec +
+                ", deletedRecordRetentionDays=" + deletedRecordRetentionDays +
                 '}';
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import java.util.List;
+
+/**
+ * One page of records from a keyset paginated harvest of a data set
+ */
+public class HarvestPage {
+    private final List<Record> records;
+    private final String resumeToken;
+    private final boolean lastPage;
+
+    public HarvestPage(List<Record> records, String resumeToken, boolean lastPage) {
+        this.records = records;
+        this.resumeToken = resumeToken;
+        this.lastPage = lastPage;
+    }
+
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return opaque token with which to fetch the page following this one
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return true if no records remained in the data set after this page
+     * at the time it was read
+     */
+    public boolean isLastPage() {
+        return lastPage;
+    }
+
+    @Override
+    public String toString() {
+        return "HarvestPage{" +
+                "records=" + records.size() +
+                ", resumeToken='" + resumeToken + '\'' +
+                ", lastPage=" + lastPage +
+                '}';
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+/**
+ * Outcome of a bulk record ingest
+ */
+public class IngestResult {
+    private final long inserted;
+    private final long updated;
+    private final long unchanged;
+
+    public IngestResult(long inserted, long updated, long unchanged) {
+        this.inserted = inserted;
+        this.updated = updated;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @return number of records not previously in the data set
+     */
+    public long getInserted() {
+        return inserted;
+    }
+
+    /**
+     * @return number of existing records whose checksum changed,
+     * and which therefore now belong to the ingesting batch
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return number of existing records whose checksum was unchanged
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestResult{" +
+                "inserted=" + inserted +
+                ", updated=" + updated +
+                ", unchanged=" + unchanged +
+                '}';
+    }
+}
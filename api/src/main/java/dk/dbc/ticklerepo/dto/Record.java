@@ -11,6 +11,8 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
 import jakarta.persistence.NamedNativeQueries;
 import jakarta.persistence.NamedNativeQuery;
 import jakarta.persistence.NamedQueries;
@@ -18,8 +20,12 @@ import jakarta.persistence.NamedQuery;
 import jakarta.persistence.PrePersist;
 import jakarta.persistence.PreUpdate;
 import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Transient;
 import org.eclipse.persistence.annotations.Cache;
 import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.annotations.Customizer;
+import org.eclipse.persistence.annotations.JoinFetch;
+import org.eclipse.persistence.annotations.JoinFetchType;
 
 import java.sql.Timestamp;
 import java.util.Date;
@@ -31,18 +37,21 @@ import java.util.Date;
         @NamedQuery(name = Record.GET_RECORDS_BY_LOCALIDS_QUERY_NAME, query = Record.GET_RECORDS_BY_LOCALIDS_QUERY),
         @NamedQuery(name = Record.GET_RECORDS_IN_BATCH_QUERY_NAME, query = Record.GET_RECORDS_IN_BATCH_QUERY),
         @NamedQuery(name = Record.GET_RECORDS_IN_DATASET_QUERY_NAME, query = Record.GET_RECORDS_IN_DATASET_QUERY),
+        @NamedQuery(name = Record.GET_RECORDS_IN_DATASET_AFTER_ID_QUERY_NAME, query = Record.GET_RECORDS_IN_DATASET_AFTER_ID_QUERY),
+        @NamedQuery(name = Record.GET_RECORD_HEADERS_IN_BATCH_QUERY_NAME, query = Record.GET_RECORD_HEADERS_IN_BATCH_QUERY),
+        @NamedQuery(name = Record.GET_RECORD_HEADERS_IN_DATASET_QUERY_NAME, query = Record.GET_RECORD_HEADERS_IN_DATASET_QUERY),
         @NamedQuery(name = Record.MARK_QUERY_NAME, query = Record.MARK_QUERY),
         @NamedQuery(name = Record.UNDO_MARK_QUERY_NAME, query = Record.UNDO_MARK_QUERY),
         @NamedQuery(name = Record.SWEEP_QUERY_NAME, query = Record.SWEEP_QUERY),
+        @NamedQuery(name = Record.SWEEP_GENERATION_QUERY_NAME, query = Record.SWEEP_GENERATION_QUERY),
         @NamedQuery(name = Record.SWEEP_OUTDATED_QUERY_NAME, query = Record.SWEEP_OUTDATED_QUERY),
 })
 @NamedNativeQueries({
         @NamedNativeQuery(name = Record.NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME,
-                query = Record.NUMBER_OF_RECORDS_IN_DATASET_QUERY),
-        @NamedNativeQuery(name = Record.ESTIMATED_NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME,
-                query = Record.ESTIMATED_NUMBER_OF_RECORDS_IN_DATASET_QUERY)
+                query = Record.NUMBER_OF_RECORDS_IN_DATASET_QUERY)
 })
 @Cache(type = CacheType.WEAK, disableHits = true)
+@Customizer(ContentCodecResolver.class)
 public class Record {
     public static final String GET_RECORD_BY_LOCALID_QUERY =
             "SELECT record FROM Record record WHERE record.dataset = :dataset AND record.localId = :localId";
@@ -59,6 +68,23 @@ public class Record {
             "SELECT record FROM Record record WHERE record.dataset = ?1 ORDER BY record.id ASC";
     public static final String GET_RECORDS_IN_DATASET_QUERY_NAME = "Record.getRecordsInDataSet";
 
+    public static final String GET_RECORDS_IN_DATASET_AFTER_ID_QUERY =
+            "SELECT record FROM Record record WHERE record.dataset = ?1 AND record.id > ?2 ORDER BY record.id ASC";
+    public static final String GET_RECORDS_IN_DATASET_AFTER_ID_QUERY_NAME = "Record.getRecordsInDataSetAfterId";
+
+    /* Projections leaving out content, so that it is never read from disk */
+    public static final String RECORD_HEADER_SELECT =
+            "SELECT record.id, record.batch, record.dataset, record.localId, record.trackingId, record.status, " +
+                    "record.generation, record.timeOfCreation, record.timeOfLastModification, record.checksum " +
+                    "FROM Record record ";
+    public static final String GET_RECORD_HEADERS_IN_BATCH_QUERY = RECORD_HEADER_SELECT +
+            "WHERE record.batch = ?1 ORDER BY record.id ASC";
+    public static final String GET_RECORD_HEADERS_IN_BATCH_QUERY_NAME = "Record.getRecordHeadersInBatch";
+
+    public static final String GET_RECORD_HEADERS_IN_DATASET_QUERY = RECORD_HEADER_SELECT +
+            "WHERE record.dataset = ?1 ORDER BY record.id ASC";
+    public static final String GET_RECORD_HEADERS_IN_DATASET_QUERY_NAME = "Record.getRecordHeadersInDataSet";
+
     public static final String MARK_QUERY =
             "UPDATE Record record SET record.status = dk.dbc.ticklerepo.dto.Record.Status.RESET " +
                     "WHERE record.dataset = :dataset AND record.status = dk.dbc.ticklerepo.dto.Record.Status.ACTIVE";
@@ -74,6 +100,12 @@ public class Record {
                     "WHERE record.dataset = :dataset AND record.status = dk.dbc.ticklerepo.dto.Record.Status.RESET";
     public static final String SWEEP_QUERY_NAME = "Record.sweep";
 
+    public static final String SWEEP_GENERATION_QUERY =
+            "UPDATE Record record SET record.batch = :batch, record.status = dk.dbc.ticklerepo.dto.Record.Status.DELETED, record.timeOfLastModification = :now, record.checksum = '' " +
+                    "WHERE record.dataset = :dataset AND record.status <> dk.dbc.ticklerepo.dto.Record.Status.DELETED " +
+                    "AND (record.generation IS NULL OR record.generation < :batch)";
+    public static final String SWEEP_GENERATION_QUERY_NAME = "Record.sweepGeneration";
+
     public static final String SWEEP_OUTDATED_QUERY =
             "UPDATE Record record SET record.batch = :batch, record.status = dk.dbc.ticklerepo.dto.Record.Status.DELETED, record.timeOfLastModification = :now, record.checksum = '' " +
                     "WHERE record.dataset = :dataset AND record.timeOfLastModification < :cutOffTime";
@@ -84,11 +116,6 @@ public class Record {
     public static final String NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME =
             "Record.numberOfRecordsInDataSet";
 
-    public static final String ESTIMATED_NUMBER_OF_RECORDS_IN_DATASET_QUERY =
-            "EXPLAIN (ANALYZE OFF, FORMAT TEXT) SELECT count(*) FROM record WHERE dataset = ?";
-    public static final String ESTIMATED_NUMBER_OF_RECORDS_IN_DATASET_QUERY_NAME =
-            "Record.estimatedNumberOfRecordsInDataSet";
-
     public enum Status {
         ACTIVE,
         DELETED,
@@ -114,12 +141,34 @@ public class Record {
     @Convert(converter = RecordStatusConverter.class)
     private Status status;
 
+    private int generation;
+
     @Column(insertable = false, updatable = false)
     private Timestamp timeOfCreation;
 
     private Timestamp timeOfLastModification;
 
+    /* Content as stored, that is encoded by the content codec.
+       Null when loaded if the content is shared, see sharedContent. */
     private byte[] content;
+
+    /* Content shared with other records, maintained by database triggers */
+    @ManyToOne
+    @JoinColumn(name = "contentDigest", referencedColumnName = "digest", insertable = false, updatable = false)
+    @JoinFetch(JoinFetchType.OUTER)
+    private RecordContent sharedContent;
+
+    @Convert(converter = ContentCodecConverter.class)
+    private ContentCodec contentCodec = ContentCodec.NONE;
+
+    @Transient
+    private byte[] decodedContent;
+
+    /* Content set without a codec, to be encoded by that of the dataset
+       when written, see ContentCodecResolver */
+    @Transient
+    private boolean contentCodecPending;
+
     private String checksum;
 
     public Record() {
@@ -179,6 +228,18 @@ public class Record {
         return this;
     }
 
+    /**
+     * @return ID of the latest batch in which this record was seen
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public Record withGeneration(int generation) {
+        this.generation = generation;
+        return this;
+    }
+
     public Timestamp getTimeOfCreation() {
         return timeOfCreation;
     }
@@ -201,15 +262,96 @@ public class Record {
         return this;
     }
 
-    public byte[] getContent() {
-        return content;
+    /**
+     * Returns the content of this record, decoding it on first access
+     * if it is stored encoded
+     *
+     * @return decoded content
+     * @throws IllegalStateException if stored content can not be decoded
+     */
+    public byte[] getContent() throws IllegalStateException {
+        final byte[] storedContent = getStoredContent();
+        if (contentCodec == ContentCodec.NONE || storedContent == null) {
+            return storedContent;
+        }
+        if (decodedContent == null) {
+            decodedContent = contentCodec.decode(storedContent);
+        }
+        return decodedContent;
     }
 
+    /**
+     * Sets content to be stored encoded by the codec of the dataset of this
+     * record, resolved when the record is persisted or updated through JPA,
+     * or when ingested by TickleRepo.ingestRecords
+     *
+     * @param content content
+     * @return this record
+     */
     public Record withContent(byte[] content) {
-        this.content = content;
+        withContent(content, ContentCodec.NONE);
+        this.contentCodecPending = true;
         return this;
     }
 
+    /**
+     * Sets content to be stored encoded by given codec,
+     * typically that of the dataset of this record
+     *
+     * @param content      content
+     * @param contentCodec codec
+     * @return this record
+     */
+    public Record withContent(byte[] content, ContentCodec contentCodec) {
+        this.contentCodecPending = false;
+        this.contentCodec = contentCodec != null ? contentCodec : ContentCodec.NONE;
+        this.content = this.contentCodec.encode(content);
+        this.sharedContent = null;
+        this.decodedContent = this.contentCodec != ContentCodec.NONE ? content : null;
+        return this;
+    }
+
+    /**
+     * @return content as stored, that is encoded by {@link #getContentCodec()}
+     */
+    public byte[] getStoredContent() {
+        if (content == null && sharedContent != null) {
+            return sharedContent.getData();
+        }
+        return content;
+    }
+
+    public ContentCodec getContentCodec() {
+        return contentCodec;
+    }
+
+    /**
+     * Sets content as stored, decoding is deferred until {@link #getContent()} is called
+     *
+     * @param storedContent content encoded by given codec
+     * @param contentCodec  codec
+     * @return this record
+     */
+    public Record withStoredContent(byte[] storedContent, ContentCodec contentCodec) {
+        this.contentCodecPending = false;
+        this.content = storedContent;
+        this.sharedContent = null;
+        this.contentCodec = contentCodec != null ? contentCodec : ContentCodec.NONE;
+        this.decodedContent = null;
+        return this;
+    }
+
+    boolean isContentCodecPending() {
+        return contentCodecPending;
+    }
+
+    /* Encodes content set without a codec by that of the dataset */
+    void resolveContentCodec(ContentCodec contentCodec) {
+        if (contentCodecPending) {
+            withContent(content, contentCodec);
+        }
+    }
+
     public String getChecksum() {
         return checksum;
     }
@@ -221,6 +363,9 @@ public class Record {
 
     /**
      * Updates batch for this record if given checksum indicates a change when compared to current checksum
+     * <p>
+     * The record is regardless considered seen by the given batch, see {@link Batch.SweepMode#GENERATION}.
+     * </p>
      *
      * @param batch    record batch
      * @param checksum new checksum
@@ -231,6 +376,7 @@ public class Record {
             this.batch = batch.getId();
             this.checksum = checksum;
         }
+        this.generation = batch.getId();
         return this;
     }
 
@@ -243,12 +389,22 @@ public class Record {
                 ", localId='" + localId + '\'' +
                 ", trackingId='" + trackingId + '\'' +
                 ", status=" + status +
+                ", generation=" + generation +
+                ", contentCodec=" + contentCodec +
                 ", timeOfCreation=" + timeOfCreation +
                 ", timeOfLastModification=" + timeOfLastModification +
                 '}';
     }
 
     @PrePersist
+    void onDatabaseInsert() {
+        if (generation == 0) {
+            // A new record is seen by the batch it is created in
+            generation = batch;
+        }
+        onDatabaseCommit();
+    }
+
     @PreUpdate
     void onDatabaseCommit() {
         this.timeOfLastModification = new Timestamp(new Date().getTime());
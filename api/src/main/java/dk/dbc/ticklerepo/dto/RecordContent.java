@@ -0,0 +1,50 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.annotations.ReadOnly;
+
+/**
+ * Record content shared by all records with identical content as stored.
+ * <p>
+ * Rows are maintained exclusively by database triggers on the record table,
+ * see V9__add_record_content.sql, hence this entity is read-only.
+ * Since content is addressed by its digest, cached instances never go stale.
+ * </p>
+ */
+@Entity
+@Table(name = "record_content")
+@ReadOnly
+@Cache(type = CacheType.WEAK)
+public class RecordContent {
+    @Id
+    private String digest;
+
+    private byte[] data;
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return content as stored, that is encoded by the content codec of the referencing record
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordContent{" +
+                "digest='" + digest + '\'' +
+                '}';
+    }
+}
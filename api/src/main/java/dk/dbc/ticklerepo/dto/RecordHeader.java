@@ -0,0 +1,140 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import java.sql.Timestamp;
+
+/**
+ * Metadata of a {@link Record} without its content
+ * <p>
+ * Content can be loaded on demand by record ID,
+ * see {@link dk.dbc.ticklerepo.TickleRepo#getRecordContent(int)}.
+ * </p>
+ */
+public class RecordHeader {
+    private int id;
+    private int batch;
+    private int dataset;
+    private String localId;
+    private String trackingId;
+    private Record.Status status;
+    private int generation;
+    private Timestamp timeOfCreation;
+    private Timestamp timeOfLastModification;
+    private String checksum;
+
+    public int getId() {
+        return id;
+    }
+
+    public RecordHeader withId(int id) {
+        this.id = id;
+        return this;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public RecordHeader withBatch(int batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    public int getDataset() {
+        return dataset;
+    }
+
+    public RecordHeader withDataset(int dataset) {
+        this.dataset = dataset;
+        return this;
+    }
+
+    public String getLocalId() {
+        return localId;
+    }
+
+    public RecordHeader withLocalId(String localId) {
+        this.localId = localId;
+        return this;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public RecordHeader withTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+        return this;
+    }
+
+    public Record.Status getStatus() {
+        return status;
+    }
+
+    public RecordHeader withStatus(Record.Status status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * @return ID of the latest batch in which the record was seen
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public RecordHeader withGeneration(int generation) {
+        this.generation = generation;
+        return this;
+    }
+
+    public Timestamp getTimeOfCreation() {
+        return timeOfCreation;
+    }
+
+    public RecordHeader withTimeOfCreation(Timestamp timeOfCreation) {
+        if (timeOfCreation != null) {
+            this.timeOfCreation = new Timestamp(timeOfCreation.getTime());
+        }
+        return this;
+    }
+
+    public Timestamp getTimeOfLastModification() {
+        return timeOfLastModification;
+    }
+
+    public RecordHeader withTimeOfLastModification(Timestamp timeOfLastModification) {
+        if (timeOfLastModification != null) {
+            this.timeOfLastModification = new Timestamp(timeOfLastModification.getTime());
+        }
+        return this;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public RecordHeader withChecksum(String checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordHeader{" +
+                "id=" + id +
+                ", batch=" + batch +
+                ", dataset=" + dataset +
+                ", localId='" + localId + '\'' +
+                ", trackingId='" + trackingId + '\'' +
+                ", status=" + status +
+                ", generation=" + generation +
+                ", timeOfCreation=" + timeOfCreation +
+                ", timeOfLastModification=" + timeOfLastModification +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import org.postgresql.util.PGobject;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import java.sql.SQLException;
+
+@Converter
+public class SweepModeConverter implements AttributeConverter<Batch.SweepMode, Object> {
+    @Override
+    public Object convertToDatabaseColumn(Batch.SweepMode sweepMode) {
+        String sweepModeValue = null;
+        if (sweepMode != null) {
+            sweepModeValue = sweepMode.name();
+        }
+
+        final PGobject pgObject = new PGobject();
+        pgObject.setType("sweep_mode");
+        try {
+            pgObject.setValue(sweepModeValue);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return pgObject;
+    }
+
+    @Override
+    public Batch.SweepMode convertToEntityAttribute(Object dbValue) {
+        if (dbValue == null) {
+            throw new IllegalArgumentException("dbValue can not be null");
+        }
+        switch ((String) dbValue) {
+            case "MARK":
+                return Batch.SweepMode.MARK;
+            case "GENERATION":
+                return Batch.SweepMode.GENERATION;
+            default:
+                return null;
+        }
+    }
+}
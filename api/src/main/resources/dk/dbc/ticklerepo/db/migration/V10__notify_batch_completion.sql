@@ -0,0 +1,22 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Notifies listeners on the batch_completed channel when a batch is
+-- completed. Notifications are only delivered once the completing
+-- transaction commits. The payload is '<batch id>,<dataset id>'.
+CREATE FUNCTION batch_notify_completion() RETURNS TRIGGER AS $$
+BEGIN
+  PERFORM pg_notify('batch_completed', NEW.id || ',' || NEW.dataset);
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER batch_notify_completion AFTER UPDATE ON batch
+  FOR EACH ROW WHEN (OLD.timeOfCompletion IS NULL AND NEW.timeOfCompletion IS NOT NULL)
+  EXECUTE PROCEDURE batch_notify_completion();
+
+CREATE TRIGGER batch_notify_completed_insert AFTER INSERT ON batch
+  FOR EACH ROW WHEN (NEW.timeOfCompletion IS NOT NULL)
+  EXECUTE PROCEDURE batch_notify_completion();
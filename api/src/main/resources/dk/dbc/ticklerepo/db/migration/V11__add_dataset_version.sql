@@ -0,0 +1,22 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Single row version of the dataset table, incremented by every statement
+-- changing it. Lets dataset caches on all nodes detect changes by
+-- reading a single value.
+CREATE TABLE dataset_version (
+  version  BIGINT NOT NULL
+);
+INSERT INTO dataset_version (version) VALUES (0);
+
+CREATE FUNCTION dataset_version_increment() RETURNS TRIGGER AS $$
+BEGIN
+  UPDATE dataset_version SET version = version + 1;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER dataset_version_increment AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON dataset
+  FOR EACH STATEMENT EXECUTE PROCEDURE dataset_version_increment();
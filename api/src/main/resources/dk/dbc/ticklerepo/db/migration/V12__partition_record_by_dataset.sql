@@ -0,0 +1,161 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Converts the record table into a table LIST partitioned on dataset.
+--
+-- The conversion is not part of the migration, it is run by calling
+-- record_partition_by_dataset(), see TickleRepo.partitionRecordTable, which
+-- requires PostgreSQL 13 for triggers on the partitioned table. Deployments
+-- on older servers, or not wanting partitions, simply never call it.
+--
+-- The existing table becomes the default partition, holding the records of
+-- every dataset without a partition of its own, so no records are moved.
+-- Existing indexes, constraints and foreign keys of the table are attached
+-- to their counterparts on the partitioned table.
+--
+-- The primary key on id can not be carried over, since unique constraints
+-- of a partitioned table must include the partition key. It is replaced by
+-- a unique constraint on (dataset, id), taking the place of the index on
+-- (dataset, id), and a plain index on id, which lookups by id alone probe
+-- in every partition. Record IDs remain globally unique by the invariant
+-- that they are drawn from record_id_seq only, never given explicitly,
+-- which is enforced within a dataset, but not across datasets, nor for
+-- records orphaned by the removal of their dataset.
+-- Both indexes are built anew, holding an exclusive lock on the table.
+--
+-- Returns false if the record table is partitioned already. The body is
+-- not checked on creation, servers without DEFAULT partitions can not parse it.
+SET LOCAL check_function_bodies = false;
+CREATE FUNCTION record_partition_by_dataset() RETURNS BOOLEAN AS $$
+BEGIN
+  IF current_setting('server_version_num')::INTEGER < 130000 THEN
+    RAISE EXCEPTION 'PostgreSQL 13 or later required to partition the record table, server is %',
+      current_setting('server_version');
+  END IF;
+  IF EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'record'::regclass) THEN
+    RETURN FALSE;
+  END IF;
+
+  ALTER TABLE record RENAME TO record_default;
+  ALTER TABLE record_default RENAME CONSTRAINT record_unique_dataset_localId_constraint TO record_default_dataset_localId_key;
+  ALTER TABLE record_default DROP CONSTRAINT record_pkey;
+  ALTER TABLE record_default ALTER COLUMN id SET NOT NULL;
+  ALTER INDEX record_batch_index RENAME TO record_default_batch_index;
+  ALTER INDEX record_dataset_index RENAME TO record_default_dataset_index;
+  ALTER INDEX record_dataset_status_index RENAME TO record_default_dataset_status_index;
+  ALTER INDEX record_timeOfLastModification_index RENAME TO record_default_timeOfLastModification_index;
+  ALTER INDEX record_dataset_localid_index RENAME TO record_default_dataset_localid_index;
+  DROP INDEX record_dataset_id_index;
+  ALTER TABLE record_default ADD CONSTRAINT record_default_dataset_id_key UNIQUE (dataset, id);
+
+  -- Recreated on the partitioned table below, statement level triggers
+  -- of the partitioned table see changes to all of its partitions
+  DROP TRIGGER record_dataset_counter_insert ON record_default;
+  DROP TRIGGER record_dataset_counter_update ON record_default;
+  DROP TRIGGER record_dataset_counter_delete ON record_default;
+  DROP TRIGGER record_content_store ON record_default;
+  DROP TRIGGER record_content_reference ON record_default;
+  DROP TRIGGER record_content_rereference ON record_default;
+  DROP TRIGGER record_content_release ON record_default;
+
+  -- Columns in the order of the existing table
+  CREATE TABLE record (
+    id                      INTEGER NOT NULL DEFAULT nextval('record_id_seq'),
+    batch                   INTEGER REFERENCES batch(id) ON DELETE SET NULL,
+    dataset                 INTEGER REFERENCES dataset(id) ON DELETE SET NULL,
+    localId                 TEXT NOT NULL,
+    trackingId              TEXT NOT NULL,
+    status                  record_status NOT NULL,
+    timeOfCreation          TIMESTAMP DEFAULT clock_timestamp(),
+    timeOfLastModification  TIMESTAMP,
+    content                 BYTEA,
+    checksum                TEXT NOT NULL,
+    generation              INTEGER,
+    contentCodec            content_codec NOT NULL DEFAULT 'NONE',
+    contentDigest           TEXT,
+    CONSTRAINT record_unique_dataset_localId_constraint UNIQUE (dataset, localId),
+    CONSTRAINT record_dataset_id_key UNIQUE (dataset, id),
+    CONSTRAINT record_content_or_digest_check CHECK (content IS NOT NULL OR contentDigest IS NOT NULL)
+  ) PARTITION BY LIST (dataset);
+  CREATE INDEX record_id_index ON record(id);
+  CREATE INDEX record_batch_index ON record(batch);
+  CREATE INDEX record_dataset_index ON record(dataset);
+  CREATE INDEX record_dataset_status_index ON record(dataset, status);
+  CREATE INDEX record_timeOfLastModification_index ON record(timeOfLastModification);
+  CREATE INDEX record_dataset_localid_index ON record(dataset, localid);
+
+  ALTER TABLE record ATTACH PARTITION record_default DEFAULT;
+  ALTER SEQUENCE record_id_seq OWNED BY record.id;
+
+  CREATE TRIGGER record_dataset_counter_insert AFTER INSERT ON record
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_insert();
+
+  CREATE TRIGGER record_dataset_counter_update AFTER UPDATE ON record
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_update();
+
+  CREATE TRIGGER record_dataset_counter_delete AFTER DELETE ON record
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_delete();
+
+  CREATE TRIGGER record_content_store BEFORE INSERT OR UPDATE ON record
+    FOR EACH ROW WHEN (NEW.content IS NOT NULL)
+    EXECUTE PROCEDURE record_content_store();
+
+  CREATE TRIGGER record_content_reference AFTER INSERT ON record
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE record_content_reference();
+
+  CREATE TRIGGER record_content_rereference AFTER UPDATE ON record
+    FOR EACH ROW WHEN (OLD.contentDigest IS DISTINCT FROM NEW.contentDigest)
+    EXECUTE PROCEDURE record_content_rereference();
+
+  CREATE TRIGGER record_content_release AFTER DELETE ON record
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE record_content_release();
+  RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves the records of a dataset from the default partition into a
+-- partition of their own, named record_dataset_<ID>.
+-- Records are copied into a table not yet attached and deleted directly
+-- from the default partition, so neither the dataset counters nor the
+-- content reference counts change. The default partition is locked
+-- exclusively, and scanned, while attaching the new partition.
+CREATE FUNCTION record_create_dataset_partition(datasetId INTEGER) RETURNS TEXT AS $$
+DECLARE
+  partitionName TEXT := 'record_dataset_' || datasetId;
+BEGIN
+  EXECUTE format('CREATE TABLE %I (LIKE record INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', partitionName);
+  EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I CHECK (dataset IS NOT NULL AND dataset = %s)',
+    partitionName, partitionName || '_check', datasetId);
+  -- Columns of all partitions are in the order of the partitioned table
+  EXECUTE format('INSERT INTO %I SELECT * FROM record_default WHERE dataset = %s', partitionName, datasetId);
+  DELETE FROM record_default WHERE dataset = datasetId;
+  EXECUTE format('ALTER TABLE record ATTACH PARTITION %I FOR VALUES IN (%s)', partitionName, datasetId);
+  -- Implied by the partition constraint from now on
+  EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', partitionName, partitionName || '_check');
+  RETURN partitionName;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Removes all records of a dataset by dropping its partition, releasing
+-- their content references and resetting the counters of the dataset.
+CREATE FUNCTION record_drop_dataset_partition(datasetId INTEGER) RETURNS TEXT AS $$
+DECLARE
+  partitionName TEXT := 'record_dataset_' || datasetId;
+BEGIN
+  EXECUTE format('ALTER TABLE record DETACH PARTITION %I', partitionName);
+  EXECUTE format('UPDATE record_content SET refcount = refcount - refs.n'
+    ' FROM (SELECT contentDigest, count(*) AS n FROM %I'
+    '       WHERE contentDigest IS NOT NULL GROUP BY contentDigest) refs'
+    ' WHERE record_content.digest = refs.contentDigest', partitionName);
+  DELETE FROM dataset_counter WHERE dataset = datasetId;
+  EXECUTE format('DROP TABLE %I', partitionName);
+  RETURN partitionName;
+END;
+$$ LANGUAGE plpgsql;
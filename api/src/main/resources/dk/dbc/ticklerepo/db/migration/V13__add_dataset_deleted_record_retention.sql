@@ -0,0 +1,8 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Number of days records of the dataset are kept as they were deleted,
+-- before being purged by TickleRepo.purgeDeletedRecords, NULL means forever
+ALTER TABLE dataset ADD COLUMN deletedRecordRetentionDays INTEGER;
@@ -0,0 +1,11 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Content is read in slices by TickleRepo.openRecordContent, substrings of
+-- uncompressed out of line values fetch only the chunks needed, whereas a
+-- compressed value is decompressed as a whole for every slice. Content is
+-- mostly compressed by its content codec already. Applies to content written
+-- from now on, existing values keep their storage until rewritten.
+ALTER TABLE record_content ALTER COLUMN data SET STORAGE EXTERNAL;
@@ -0,0 +1,84 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Bounds the number of dataset_counter rows. Instead of appending a delta
+-- row per statement, the triggers now add their deltas to one of 16 rows
+-- per dataset and status, striped by backend, so concurrent writers rarely
+-- contend for the same row while counters are summed from a bounded number
+-- of rows. Stripe -1 is reserved for compaction, see TickleRepo, which no
+-- trigger writes to, keeping compaction from ever waiting for a writer.
+ALTER TABLE dataset_counter ADD COLUMN stripe SMALLINT NOT NULL DEFAULT -1;
+
+WITH removed AS (
+  DELETE FROM dataset_counter
+  RETURNING dataset, status, records, timeOfLastModification, batch
+)
+INSERT INTO dataset_counter (dataset, status, records, timeOfLastModification, batch)
+  SELECT dataset, status, sum(records), max(timeOfLastModification), max(batch)
+  FROM removed GROUP BY dataset, status;
+
+ALTER TABLE dataset_counter ALTER COLUMN stripe DROP DEFAULT;
+ALTER TABLE dataset_counter ADD PRIMARY KEY (dataset, status, stripe);
+DROP INDEX dataset_counter_dataset_index;
+
+-- Deltas are added in dataset and status order, so that writers sharing a
+-- stripe lock its rows in the same order. Deltas of UPDATE statements not
+-- changing the status of any record only ever advance the time of last
+-- modification and batch, rows already up to date are left unwritten.
+CREATE OR REPLACE FUNCTION dataset_counter_insert() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, stripe, records, timeOfLastModification, batch)
+    SELECT new_rows.dataset, new_rows.status, pg_backend_pid() % 16,
+      count(*), max(new_rows.timeOfLastModification), max(new_rows.batch)
+    FROM new_rows JOIN dataset ON dataset.id = new_rows.dataset
+    GROUP BY new_rows.dataset, new_rows.status
+    ORDER BY new_rows.dataset, new_rows.status
+    ON CONFLICT (dataset, status, stripe) DO UPDATE SET
+      records = dataset_counter.records + EXCLUDED.records,
+      timeOfLastModification = greatest(dataset_counter.timeOfLastModification, EXCLUDED.timeOfLastModification),
+      batch = greatest(dataset_counter.batch, EXCLUDED.batch);
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION dataset_counter_update() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, stripe, records, timeOfLastModification, batch)
+    SELECT changes.dataset, changes.status, pg_backend_pid() % 16,
+      sum(changes.records), max(changes.timeOfLastModification), max(changes.batch)
+    FROM (
+      SELECT dataset, status, -1 AS records, NULL::TIMESTAMP AS timeOfLastModification, NULL::INTEGER AS batch
+      FROM old_rows
+      UNION ALL
+      SELECT dataset, status, 1, timeOfLastModification, batch
+      FROM new_rows
+    ) changes JOIN dataset ON dataset.id = changes.dataset
+    GROUP BY changes.dataset, changes.status
+    HAVING sum(changes.records) <> 0 OR max(changes.timeOfLastModification) IS NOT NULL
+      OR max(changes.batch) IS NOT NULL
+    ORDER BY changes.dataset, changes.status
+    ON CONFLICT (dataset, status, stripe) DO UPDATE SET
+      records = dataset_counter.records + EXCLUDED.records,
+      timeOfLastModification = greatest(dataset_counter.timeOfLastModification, EXCLUDED.timeOfLastModification),
+      batch = greatest(dataset_counter.batch, EXCLUDED.batch)
+    WHERE EXCLUDED.records <> 0
+      OR EXCLUDED.timeOfLastModification > coalesce(dataset_counter.timeOfLastModification, '-infinity')
+      OR EXCLUDED.batch > coalesce(dataset_counter.batch, 0);
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION dataset_counter_delete() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, stripe, records)
+    SELECT old_rows.dataset, old_rows.status, pg_backend_pid() % 16, -count(*)
+    FROM old_rows JOIN dataset ON dataset.id = old_rows.dataset
+    GROUP BY old_rows.dataset, old_rows.status
+    ORDER BY old_rows.dataset, old_rows.status
+    ON CONFLICT (dataset, status, stripe) DO UPDATE SET
+      records = dataset_counter.records + EXCLUDED.records;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,13 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Concatenating a NULL dataset made the whole payload NULL, the dataset ID
+-- of the payload '<batch id>,<dataset id>' is now left empty instead.
+CREATE OR REPLACE FUNCTION batch_notify_completion() RETURNS TRIGGER AS $$
+BEGIN
+  PERFORM pg_notify('batch_completed', format('%s,%s', NEW.id, NEW.dataset));
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
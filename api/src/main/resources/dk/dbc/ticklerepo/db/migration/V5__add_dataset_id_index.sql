@@ -0,0 +1 @@
+CREATE INDEX record_dataset_id_index ON record(dataset, id);
@@ -0,0 +1,12 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+CREATE TYPE sweep_mode AS ENUM ('MARK', 'GENERATION');
+
+ALTER TABLE batch ADD COLUMN sweepMode sweep_mode NOT NULL DEFAULT 'MARK';
+
+-- ID of the latest batch in which the record was seen,
+-- NULL for records not seen since this column was introduced
+ALTER TABLE record ADD COLUMN generation INTEGER;
@@ -0,0 +1,73 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Number of records per dataset and status kept as deltas appended by
+-- statement level triggers on the record table. Appending instead of
+-- updating a single row per dataset and status avoids row lock contention
+-- between concurrent writers. The deltas of a dataset are summed together
+-- again by compaction.
+CREATE TABLE dataset_counter (
+  dataset                 INTEGER NOT NULL REFERENCES dataset(id) ON DELETE CASCADE,
+  status                  record_status NOT NULL,
+  records                 BIGINT NOT NULL,
+  timeOfLastModification  TIMESTAMP,
+  batch                   INTEGER
+);
+CREATE INDEX dataset_counter_dataset_index ON dataset_counter(dataset);
+
+-- Changes are joined with the dataset table to leave out records whose
+-- dataset is being deleted in the same transaction.
+CREATE FUNCTION dataset_counter_insert() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, records, timeOfLastModification, batch)
+    SELECT new_rows.dataset, new_rows.status, count(*), max(new_rows.timeOfLastModification), max(new_rows.batch)
+    FROM new_rows JOIN dataset ON dataset.id = new_rows.dataset
+    GROUP BY new_rows.dataset, new_rows.status;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION dataset_counter_update() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, records, timeOfLastModification, batch)
+    SELECT changes.dataset, changes.status, sum(changes.records), max(changes.timeOfLastModification), max(changes.batch)
+    FROM (
+      SELECT dataset, status, -1 AS records, NULL::TIMESTAMP AS timeOfLastModification, NULL::INTEGER AS batch
+      FROM old_rows
+      UNION ALL
+      SELECT dataset, status, 1, timeOfLastModification, batch
+      FROM new_rows
+    ) changes JOIN dataset ON dataset.id = changes.dataset
+    GROUP BY changes.dataset, changes.status;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION dataset_counter_delete() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO dataset_counter (dataset, status, records)
+    SELECT old_rows.dataset, old_rows.status, -count(*)
+    FROM old_rows JOIN dataset ON dataset.id = old_rows.dataset
+    GROUP BY old_rows.dataset, old_rows.status;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER record_dataset_counter_insert AFTER INSERT ON record
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_insert();
+
+CREATE TRIGGER record_dataset_counter_update AFTER UPDATE ON record
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_update();
+
+CREATE TRIGGER record_dataset_counter_delete AFTER DELETE ON record
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE dataset_counter_delete();
+
+INSERT INTO dataset_counter (dataset, status, records, timeOfLastModification, batch)
+  SELECT dataset, status, count(*), max(timeOfLastModification), max(batch)
+  FROM record WHERE dataset IS NOT NULL
+  GROUP BY dataset, status;
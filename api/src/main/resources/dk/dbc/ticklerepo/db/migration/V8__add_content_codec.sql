@@ -0,0 +1,12 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+CREATE TYPE content_codec AS ENUM ('NONE', 'DEFLATE');
+
+-- Codec used for content of records written to the dataset
+ALTER TABLE dataset ADD COLUMN contentCodec content_codec NOT NULL DEFAULT 'NONE';
+
+-- Codec by which the content of the record is stored
+ALTER TABLE record ADD COLUMN contentCodec content_codec NOT NULL DEFAULT 'NONE';
@@ -0,0 +1,104 @@
+/*
+Copyright Dansk Bibliotekscenter a/s. Licensed under GNU 3
+See license text in LICENSE.txt
+*/
+
+-- Record content stored once per distinct value (as stored, that is
+-- after any content codec has been applied), addressed by its MD5 digest.
+-- The refcount is the number of records referencing the content, content
+-- no longer referenced is removed by a purge, not by the triggers below.
+-- Reference counting triggers only ever adjust refcounts, since the order
+-- in which the row events of a statement are processed is not defined.
+CREATE TABLE record_content (
+  digest    TEXT PRIMARY KEY,
+  data      BYTEA NOT NULL,
+  refcount  BIGINT NOT NULL DEFAULT 0
+);
+CREATE INDEX record_content_unreferenced_index ON record_content(digest) WHERE refcount <= 0;
+
+-- A record references shared content through contentDigest, in which case
+-- its own content column is NULL. Content is only kept in the record
+-- itself in the unlikely event of a digest collision, if the shared
+-- content is purged while being referenced, or for records written before
+-- this migration. Those are left as they are here, rewriting every row of
+-- the record table in a single transaction, and are moved in chunks of
+-- their own by TickleRepo.moveRecordContent, or whenever next updated.
+ALTER TABLE record ADD COLUMN contentDigest TEXT;
+ALTER TABLE record ALTER COLUMN content DROP NOT NULL;
+ALTER TABLE record ADD CONSTRAINT record_content_or_digest_check
+  CHECK (content IS NOT NULL OR contentDigest IS NOT NULL);
+
+-- Moves content written to a record into record_content.
+-- A NULL content on UPDATE means the content is left unchanged.
+-- The reference itself is counted by the AFTER triggers below, since
+-- BEFORE INSERT triggers also fire for rows never inserted because of
+-- ON CONFLICT. The shared lock keeps the content from being purged until
+-- this transaction ends, without writing a new version of the row.
+CREATE FUNCTION record_content_store() RETURNS TRIGGER AS $$
+DECLARE
+  newDigest TEXT;
+BEGIN
+  newDigest := md5(NEW.content);
+  INSERT INTO record_content (digest, data) VALUES (newDigest, NEW.content)
+    ON CONFLICT (digest) DO NOTHING;
+  PERFORM 1 FROM record_content
+    WHERE digest = newDigest AND data = NEW.content FOR KEY SHARE;
+  IF FOUND THEN
+    NEW.contentDigest := newDigest;
+    NEW.content := NULL;
+  ELSE
+    NEW.contentDigest := NULL;
+  END IF;
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION record_content_reference() RETURNS TRIGGER AS $$
+BEGIN
+  UPDATE record_content SET refcount = refcount + refs.n
+    FROM (SELECT contentDigest, count(*) AS n FROM new_rows
+          WHERE contentDigest IS NOT NULL GROUP BY contentDigest) refs
+    WHERE record_content.digest = refs.contentDigest;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION record_content_rereference() RETURNS TRIGGER AS $$
+BEGIN
+  IF NEW.contentDigest IS NOT NULL THEN
+    UPDATE record_content SET refcount = refcount + 1 WHERE digest = NEW.contentDigest;
+  END IF;
+  IF OLD.contentDigest IS NOT NULL THEN
+    UPDATE record_content SET refcount = refcount - 1 WHERE digest = OLD.contentDigest;
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION record_content_release() RETURNS TRIGGER AS $$
+BEGIN
+  UPDATE record_content SET refcount = refcount - refs.n
+    FROM (SELECT contentDigest, count(*) AS n FROM old_rows
+          WHERE contentDigest IS NOT NULL GROUP BY contentDigest) refs
+    WHERE record_content.digest = refs.contentDigest;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER record_content_store BEFORE INSERT OR UPDATE ON record
+  FOR EACH ROW WHEN (NEW.content IS NOT NULL)
+  EXECUTE PROCEDURE record_content_store();
+
+CREATE TRIGGER record_content_reference AFTER INSERT ON record
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE record_content_reference();
+
+-- Row level with a WHEN condition, so that updates leaving the content
+-- untouched, like mark and sweep, do not pay for reference counting
+CREATE TRIGGER record_content_rereference AFTER UPDATE ON record
+  FOR EACH ROW WHEN (OLD.contentDigest IS DISTINCT FROM NEW.contentDigest)
+  EXECUTE PROCEDURE record_content_rereference();
+
+CREATE TRIGGER record_content_release AFTER DELETE ON record
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE record_content_release();
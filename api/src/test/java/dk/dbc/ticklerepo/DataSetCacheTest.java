@@ -0,0 +1,92 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import dk.dbc.ticklerepo.dto.DataSet;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DataSetCacheTest {
+    private final DataSet dataSet = new DataSet().withId(1).withName("dataset1").withAgencyId(123456);
+
+    @Test
+    public void emptiedOnVersionChange() {
+        final DataSetCache cache = new DataSetCache(10, Duration.ZERO);
+        cache.validate(() -> 1);
+        cache.putByName(dataSet);
+        cache.validate(() -> 1);
+        assertThat("same version", cache.getIdByName("dataset1"), is(1));
+        cache.validate(() -> 2);
+        assertThat("new version", cache.getIdByName("dataset1"), is(nullValue()));
+    }
+
+    @Test
+    public void versionNotCheckedWithinMaximumStaleness() {
+        final DataSetCache cache = new DataSetCache(10, Duration.ofHours(1));
+        cache.validate(() -> 1);
+        cache.putByName(dataSet);
+        cache.validate(() -> 2);
+        assertThat(cache.getIdByName("dataset1"), is(notNullValue()));
+    }
+
+    @Test
+    public void invalidateForcesVersionCheck() {
+        final DataSetCache cache = new DataSetCache(10, Duration.ofHours(1));
+        cache.validate(() -> 1);
+        cache.putByName(dataSet);
+        cache.invalidate();
+        assertThat("invalidated", cache.getIdByName("dataset1"), is(nullValue()));
+        cache.putByName(dataSet);
+        cache.validate(() -> 2);
+        assertThat("new version", cache.getIdByName("dataset1"), is(nullValue()));
+    }
+
+    @Test
+    public void validationDoesNotBlockWhileReadingVersion() throws Exception {
+        final DataSetCache cache = new DataSetCache(10, Duration.ofHours(1));
+        cache.validate(() -> 1);
+        cache.putByName(dataSet);
+        cache.invalidate();
+        cache.putByName(dataSet);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CompletableFuture<Void> slowValidation = CompletableFuture.runAsync(() -> cache.validate(() -> {
+            reading.countDown();
+            try {
+                read.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 2;
+        }));
+        try {
+            assertThat("reading", reading.await(10, TimeUnit.SECONDS), is(true));
+            CompletableFuture.runAsync(() -> cache.validate(() -> 1)).get(10, TimeUnit.SECONDS);
+            assertThat("validated while reading", cache.getIdByName("dataset1"), is(nullValue()));
+        } finally {
+            read.countDown();
+        }
+        slowValidation.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cachesIdsBySubmitter() {
+        final DataSetCache cache = new DataSetCache(10, Duration.ZERO);
+        cache.putBySubmitter(123456, Arrays.asList(dataSet, new DataSet().withId(2).withName("dataset2")));
+        assertThat(cache.getIdsBySubmitter(123456), is(Arrays.asList(1, 2)));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class LruCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final LruCache<Integer, String> cache = new LruCache<>(2);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.get(1);
+        cache.put(3, "three");
+        assertThat("1", cache.get(1), is("one"));
+        assertThat("2", cache.get(2), is(nullValue()));
+        assertThat("3", cache.get(3), is("three"));
+        assertThat("size", cache.size(), is(2));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        final LruCache<Integer, String> cache = new LruCache<>(2);
+        cache.get(1);
+        cache.put(1, "one");
+        cache.get(1);
+        cache.get(1);
+        final CacheStatistics statistics = cache.getStatistics();
+        assertThat("hits", statistics.getHits(), is(2L));
+        assertThat("misses", statistics.getMisses(), is(1L));
+        assertThat("size", statistics.getSize(), is(1));
+    }
+
+    @Test
+    public void expiresEntries() throws InterruptedException {
+        final LruCache<Integer, String> cache = new LruCache<>(2, Duration.ofMillis(1));
+        cache.put(1, "one");
+        Thread.sleep(10);
+        assertThat("expired", cache.get(1), is(nullValue()));
+        assertThat("size", cache.size(), is(0));
+    }
+}
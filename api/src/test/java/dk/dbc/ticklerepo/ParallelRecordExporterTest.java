@@ -0,0 +1,37 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ParallelRecordExporterTest {
+    @Test
+    public void splitIdRange() {
+        final long[][] ranges = ParallelRecordExporter.splitIdRange(11, 30, 3);
+        assertThat("number of ranges", ranges.length, is(3));
+        assertThat("range 0", ranges[0], is(new long[]{11, 18}));
+        assertThat("range 1", ranges[1], is(new long[]{18, 25}));
+        assertThat("range 2", ranges[2], is(new long[]{25, 31}));
+    }
+
+    @Test
+    public void splitIdRange_fewerIdsThanPartitions() {
+        final long[][] ranges = ParallelRecordExporter.splitIdRange(5, 6, 4);
+        assertThat("number of ranges", ranges.length, is(2));
+        assertThat("range 0", ranges[0], is(new long[]{5, 6}));
+        assertThat("range 1", ranges[1], is(new long[]{6, 7}));
+    }
+
+    @Test
+    public void splitIdRange_noEmptyTrailingRanges() {
+        final long[][] ranges = ParallelRecordExporter.splitIdRange(1, 5, 4);
+        assertThat("number of ranges", ranges.length, is(3));
+        assertThat("last range", ranges[2], is(new long[]{5, 6}));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PgBinaryCopyReaderTest {
+    @Test
+    public void readsWhatWriterWrote() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PgBinaryCopyWriter writer = new PgBinaryCopyWriter(out)) {
+            writer.startRow(5)
+                    .writeInt(42)
+                    .writeLong(4242L)
+                    .writeText("text \u00e6\u00f8\u00e5")
+                    .writeBytes(new byte[]{1, 2, 3})
+                    .writeNull();
+        }
+
+        try (PgBinaryCopyReader reader = new PgBinaryCopyReader(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat("number of fields", reader.startRow(), is(5));
+            assertThat("int", reader.readInt(), is(42));
+            assertThat("long", reader.readLong(), is(4242L));
+            assertThat("text", reader.readText(), is("text \u00e6\u00f8\u00e5"));
+            assertThat("bytes", reader.readBytes(), is(new byte[]{1, 2, 3}));
+            assertThat("null", reader.readText(), is(nullValue()));
+            assertThat("trailer", reader.startRow(), is(-1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownFormat() throws IOException {
+        new PgBinaryCopyReader(new ByteArrayInputStream("id,localId\n1,local1\n".getBytes()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFieldOfUnexpectedLength() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PgBinaryCopyWriter writer = new PgBinaryCopyWriter(out)) {
+            writer.startRow(1).writeLong(42L);
+        }
+        try (PgBinaryCopyReader reader = new PgBinaryCopyReader(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.startRow();
+            reader.readInt();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo;
+
+import org.junit.Test;
+
+import static dk.dbc.commons.testutil.Assert.assertThat;
+import static dk.dbc.commons.testutil.Assert.isThrowing;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ResumeTokenTest {
+    @Test
+    public void decode_tokenIsNull_startsFromBeginningOfDataSet() {
+        final ResumeToken token = ResumeToken.decode(null, 42);
+        assertThat("data set ID", token.getDataSetId(), is(42));
+        assertThat("last seen ID", token.getLastSeenId(), is(0));
+    }
+
+    @Test
+    public void roundTrip() {
+        final ResumeToken token = ResumeToken.decode(new ResumeToken(42, 1234567).encode(), 42);
+        assertThat("data set ID", token.getDataSetId(), is(42));
+        assertThat("last seen ID", token.getLastSeenId(), is(1234567));
+    }
+
+    @Test
+    public void decode_tokenBelongsToOtherDataSet_throws() {
+        final String token = new ResumeToken(42, 10).encode();
+        assertThat(() -> ResumeToken.decode(token, 43), isThrowing(IllegalArgumentException.class));
+    }
+
+    @Test
+    public void decode_tokenIsMalformed_throws() {
+        assertThat(() -> ResumeToken.decode("not a token", 42), isThrowing(IllegalArgumentException.class));
+        assertThat(() -> ResumeToken.decode("MTpmb286YmFy", 42), isThrowing(IllegalArgumentException.class));
+    }
+}
@@ -14,30 +14,65 @@ import com.opentable.db.postgres.junit.SingleInstancePostgresRule;
 import dk.dbc.commons.persistence.JpaIntegrationTest;
 import dk.dbc.commons.persistence.JpaTestEnvironment;
 import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.ChecksumDiff;
+import dk.dbc.ticklerepo.dto.ContentCodec;
 import dk.dbc.ticklerepo.dto.DataSet;
 import dk.dbc.ticklerepo.dto.DataSetSummary;
+import dk.dbc.ticklerepo.dto.HarvestPage;
+import dk.dbc.ticklerepo.dto.IngestResult;
 import dk.dbc.ticklerepo.dto.Record;
+import dk.dbc.ticklerepo.dto.RecordHeader;
 import jakarta.persistence.Query;
 import jakarta.persistence.RollbackException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.postgresql.ds.PGSimpleDataSource;
 
 import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -62,6 +97,7 @@ public class TickleRepoIT extends JpaIntegrationTest {
         try (Connection conn = env().getDatasource().getConnection();
              Statement statement = conn.createStatement()) {
             statement.executeUpdate("DELETE FROM record");
+            statement.executeUpdate("DELETE FROM record_content");
             statement.executeUpdate("DELETE FROM batch");
             statement.executeUpdate("DELETE FROM dataset");
             statement.executeUpdate("ALTER SEQUENCE record_id_seq RESTART");
@@ -76,11 +112,21 @@ public class TickleRepoIT extends JpaIntegrationTest {
     }
 
     TickleRepo tickleRepo;
+    ExecutorService executor;
 
     @Before
     public void tickleRepo() {
         tickleRepo = new TickleRepo();
         tickleRepo.entityManager = env().getEntityManager();
+        tickleRepo.dataSource = env().getDatasource();
+        tickleRepo.dataSetCache = new DataSetCache(DataSetCache.DEFAULT_MAXIMUM_SIZE, Duration.ZERO);
+        tickleRepo.batchCache = new BatchCache();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
     }
 
     @Test
@@ -116,6 +162,44 @@ public class TickleRepoIT extends JpaIntegrationTest {
         });
     }
 
+    @Test
+    public void resultSetIteratorIsForwardOnly() {
+        final Batch batch = new Batch()
+                .withId(4);
+
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(batch)) {
+                final Iterator<Record> iterator = rs.iterator();
+                assertThat("hasNext is idempotent", iterator.hasNext() && iterator.hasNext(), is(true));
+                assertThat("record ID", iterator.next().getId(), is(31));
+                assertThat("hasNext after last row", iterator.hasNext(), is(false));
+                try {
+                    iterator.next();
+                    fail("No exception thrown");
+                } catch (NoSuchElementException e) {
+                }
+            }
+        });
+    }
+
+    @Test
+    public void streamingBatchRecords() {
+        final Batch batch = new Batch()
+                .withId(2);
+
+        env().getPersistenceContext().run(() -> {
+            final List<String> localIds;
+            try (Stream<Record> stream = tickleRepo.getRecordsInBatch(batch).stream()) {
+                localIds = stream
+                        .filter(record -> record.getStatus() == Record.Status.DELETED)
+                        .map(Record::getLocalId)
+                        .collect(Collectors.toList());
+            }
+            assertThat(localIds, is(Arrays.asList(
+                    "local2_2_2", "local2_2_4", "local2_2_6", "local2_2_8", "local2_2_10")));
+        });
+    }
+
     @Test
     public void creatingTotalBatchMarksAllActiveRecordsAsReset() {
         final Batch batch = new Batch()
@@ -289,6 +373,190 @@ public class TickleRepoIT extends JpaIntegrationTest {
         assertThat("batch is marked as completed", batch.getTimeOfCompletion(), is(notNullValue()));
     }
 
+    @Test
+    public void creatingTotalBatchInChunksMarksAllActiveRecordsAsReset() {
+        final Batch batch = new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.TOTAL)
+                .withDataset(1);
+
+        final List<ChunkedUpdate.Progress> progress = new ArrayList<>();
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate()
+                .withChunkSize(3)
+                .withMaxRowsPerSecond(1000)
+                .withProgressListener(progress::add);
+
+        final Batch batchCreated = env().getPersistenceContext().run(() ->
+                tickleRepo.createBatch(batch, chunkedUpdate));
+        assertThat("batch ID", batchCreated.getId(), is(6));
+
+        assertThat("number of chunks", progress.size(), is(4));
+        assertThat("rows marked", progress.get(progress.size() - 1).getRowsTotal(), is(9L));
+        assertThat("last ID", progress.get(progress.size() - 1).getLastId(), is(10));
+
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("active", summary.getActive(), is(0L));
+        assertThat("reset", summary.getReset(), is(9L));
+        assertThat("deleted", summary.getDeleted(), is(1L));
+    }
+
+    @Test
+    public void creatingTotalBatchInChunksMarksLikeSingleStatement() throws SQLException {
+        final Batch chunkedBatch = new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.TOTAL)
+                .withDataset(1);
+        final List<ChunkedUpdate.Progress> progress = new ArrayList<>();
+        env().getPersistenceContext().run(() -> tickleRepo.createBatch(chunkedBatch, new ChunkedUpdate()
+                .withChunkSize(3)
+                .withProgressListener(chunk -> {
+                    progress.add(chunk);
+                    // Unchanged re-deliveries, of records both behind and ahead of the marking
+                    for (int id : new int[]{1, 9}) {
+                        final Record record = tickleRepo.lookupRecord(new Record().withId(id)).orElse(null);
+                        record.updateBatchIfModified(chunkedBatch, record.getChecksum());
+                    }
+                })));
+        final long chunkedMarks = progress.get(progress.size() - 1).getRowsTotal();
+        assertThat("re-delivered records marked", getNumberOfRowsIn(
+                "record WHERE id IN (1, 9) AND status = 'RESET'"), is(2L));
+        env().getPersistenceContext().run(() -> tickleRepo.abortBatch(chunkedBatch));
+
+        env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000005)
+                .withType(Batch.Type.TOTAL)
+                .withDataset(1)));
+        assertThat("marks", chunkedMarks, is(tickleRepo.getDataSetSummaryByDataSetId(1).getReset()));
+    }
+
+    @Test
+    public void closingTotalBatchInChunksSetsAllRecordsWithStatusResetToDeleted() {
+        final Batch batch = env().getEntityManager().find(Batch.class, 3);
+
+        final List<ChunkedUpdate.Progress> progress = new ArrayList<>();
+        env().getPersistenceContext().run(() -> tickleRepo.closeBatch(batch,
+                new ChunkedUpdate().withChunkSize(4).withProgressListener(progress::add)));
+
+        assertThat("number of chunks", progress.size(), is(5));
+        assertThat("rows swept", progress.get(progress.size() - 1).getRowsTotal(), is(5L));
+
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(2);
+        assertThat("active", summary.getActive(), is(9L));
+        assertThat("reset", summary.getReset(), is(0L));
+        assertThat("deleted", summary.getDeleted(), is(11L));
+
+        final Record deletedRecord = tickleRepo.lookupRecord(new Record().withId(11)).orElse(null);
+        assertThat("deleted record batch", deletedRecord.getBatch(), is(3));
+        assertThat("deleted record checksum", deletedRecord.getChecksum(), is(""));
+
+        env().getEntityManager().refresh(batch);
+        assertThat("batch is marked as completed", batch.getTimeOfCompletion(), is(notNullValue()));
+    }
+
+    @Test
+    public void abortingBatchInChunksUndoMarks() {
+        final Batch batch = env().getEntityManager().find(Batch.class, 2);
+
+        env().getPersistenceContext().run(() -> tickleRepo.abortBatch(batch, new ChunkedUpdate().withChunkSize(7)));
+
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(2);
+        assertThat("active", summary.getActive(), is(14L));
+        assertThat("reset", summary.getReset(), is(0L));
+        assertThat("deleted", summary.getDeleted(), is(6L));
+
+        env().getEntityManager().refresh(batch);
+        assertThat("batch time of completion", batch.getTimeOfCompletion(), is(notNullValue()));
+    }
+
+    @Test
+    public void closingTotalBatchInGenerationModeDeletesRecordsNotSeen() {
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.TOTAL)
+                .withSweepMode(Batch.SweepMode.GENERATION)
+                .withDataset(1)));
+
+        DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("active after create", summary.getActive(), is(9L));
+        assertThat("reset after create", summary.getReset(), is(0L));
+
+        // Seen unchanged through the entity API
+        env().getPersistenceContext().run(() -> tickleRepo.lookupRecord(new Record().withId(1))
+                .orElse(null)
+                .updateBatchIfModified(batch, "chksum1_1_1"));
+
+        // Seen through bulk ingest
+        final List<Record> records = new ArrayList<>();
+        records.add(new Record().withLocalId("local1_1_2").withTrackingId("t1_1_2")
+                .withStatus(Record.Status.ACTIVE).withContent("data1_1_2".getBytes()).withChecksum("chksum1_1_2"));
+        records.add(new Record().withLocalId("local1_1_11").withTrackingId("t1_1_11")
+                .withStatus(Record.Status.ACTIVE).withContent("data1_1_11".getBytes()).withChecksum("chksum1_1_11"));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, records));
+
+        env().getPersistenceContext().run(() -> tickleRepo.closeBatch(batch));
+
+        summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("active", summary.getActive(), is(3L));
+        assertThat("reset", summary.getReset(), is(0L));
+        assertThat("deleted", summary.getDeleted(), is(8L));
+
+        final Record seenRecord = tickleRepo.lookupRecord(new Record().withId(1)).orElse(null);
+        assertThat("seen record status", seenRecord.getStatus(), is(Record.Status.ACTIVE));
+        assertThat("seen record batch", seenRecord.getBatch(), is(1));
+        assertThat("seen record generation", seenRecord.getGeneration(), is(batch.getId()));
+
+        final Record deletedRecord = tickleRepo.lookupRecord(new Record().withId(3)).orElse(null);
+        assertThat("deleted record status", deletedRecord.getStatus(), is(Record.Status.DELETED));
+        assertThat("deleted record batch", deletedRecord.getBatch(), is(batch.getId()));
+        assertThat("deleted record checksum", deletedRecord.getChecksum(), is(""));
+
+        final Record previouslyDeletedRecord = tickleRepo.lookupRecord(new Record().withId(10)).orElse(null);
+        assertThat("previously deleted record batch", previouslyDeletedRecord.getBatch(), is(1));
+    }
+
+    @Test
+    public void closingTotalBatchInGenerationModeInChunks() {
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.TOTAL)
+                .withSweepMode(Batch.SweepMode.GENERATION)
+                .withDataset(1), new ChunkedUpdate().withChunkSize(3)));
+
+        env().getPersistenceContext().run(() -> tickleRepo.lookupRecord(new Record().withId(1))
+                .orElse(null)
+                .updateBatchIfModified(batch, "chksum1_1_1"));
+
+        final List<ChunkedUpdate.Progress> progress = new ArrayList<>();
+        env().getPersistenceContext().run(() -> tickleRepo.closeBatch(batch,
+                new ChunkedUpdate().withChunkSize(3).withProgressListener(progress::add)));
+
+        assertThat("rows swept", progress.get(progress.size() - 1).getRowsTotal(), is(8L));
+
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("active", summary.getActive(), is(1L));
+        assertThat("deleted", summary.getDeleted(), is(9L));
+    }
+
+    @Test
+    public void abortingTotalBatchInGenerationModeLeavesRecordsUntouched() throws SQLException {
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.TOTAL)
+                .withSweepMode(Batch.SweepMode.GENERATION)
+                .withDataset(1)));
+
+        env().getPersistenceContext().run(() -> tickleRepo.abortBatch(batch));
+
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("active", summary.getActive(), is(9L));
+        assertThat("deleted", summary.getDeleted(), is(1L));
+        assertThat("counter rows compacted", getNumberOfRowsIn("dataset_counter WHERE dataset = 1"), is(2L));
+
+        env().getEntityManager().refresh(batch);
+        assertThat("batch time of completion", batch.getTimeOfCompletion(), is(notNullValue()));
+        assertThat("batch sweep mode", batch.getSweepMode(), is(Batch.SweepMode.GENERATION));
+    }
+
     @Test
     public void gettingNextBatchWhenCompleted() {
         final Batch batch2 = env().getEntityManager().find(Batch.class, 2);
@@ -456,6 +724,84 @@ public class TickleRepoIT extends JpaIntegrationTest {
         assertThat(summary.getBatchId(), is(4));
     }
 
+    @Test
+    public void dataSetCountersFollowRecordChanges() {
+        env().getPersistenceContext().run(() -> {
+            final Batch batch = tickleRepo.lookupBatch(new Batch().withId(1)).orElse(null);
+            env().getEntityManager().persist(new Record()
+                    .withDataset(1)
+                    .withBatch(batch.getId())
+                    .withLocalId("local1_1_11")
+                    .withTrackingId("t1_1_11")
+                    .withStatus(Record.Status.ACTIVE)
+                    .withContent("data1_1_11".getBytes())
+                    .withChecksum("chksum1_1_11"));
+            tickleRepo.lookupRecord(new Record().withId(1)).orElse(null)
+                    .withStatus(Record.Status.DELETED);
+            env().getEntityManager().remove(tickleRepo.lookupRecord(new Record().withId(10)).orElse(null));
+        });
+
+        DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("sum", summary.getSum(), is(10L));
+        assertThat("active", summary.getActive(), is(9L));
+        assertThat("deleted", summary.getDeleted(), is(1L));
+        assertThat("time of last modification", summary.getTimeOfLastModification(), is(notNullValue()));
+
+        final int counterRows = env().getPersistenceContext().run(() -> tickleRepo.compactDataSetCounters(1));
+        assertThat("counter rows after compaction", counterRows, is(2));
+        summary = tickleRepo.getDataSetSummaryByDataSetId(1);
+        assertThat("sum after compaction", summary.getSum(), is(10L));
+        assertThat("active after compaction", summary.getActive(), is(9L));
+
+        assertThat("verified", tickleRepo.verifyDataSetCounters().isEmpty(), is(true));
+    }
+
+    @Test
+    public void dataSetCounterRowsAreBounded() throws SQLException {
+        final long counterRows = getNumberOfRowsIn("dataset_counter WHERE dataset = 1");
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement()) {
+            for (int i = 0; i < 5; i++) {
+                statement.executeUpdate("UPDATE record SET trackingId = trackingId WHERE dataset = 1");
+            }
+        }
+        assertThat("counter rows added by a single writer",
+                getNumberOfRowsIn("dataset_counter WHERE dataset = 1") - counterRows <= 2, is(true));
+        assertThat("verified", tickleRepo.verifyDataSetCounters().isEmpty(), is(true));
+    }
+
+    @Test
+    public void rebuildDataSetCounters() {
+        env().getPersistenceContext().run(() -> env().getEntityManager()
+                .createNativeQuery("INSERT INTO dataset_counter (dataset, status, stripe, records) VALUES (2, 'RESET', 16, 42)")
+                .executeUpdate());
+
+        assertThat("deviating datasets", tickleRepo.verifyDataSetCounters(), is(Collections.singletonList("dataset2")));
+
+        final int counterRows = env().getPersistenceContext().run(() -> tickleRepo.rebuildDataSetCounters());
+        assertThat("counter rows", counterRows, is(7));
+
+        assertThat("deviating datasets after rebuild", tickleRepo.verifyDataSetCounters().isEmpty(), is(true));
+        assertThat("reset", tickleRepo.getDataSetSummaryByDataSetId(2).getReset(), is(5L));
+    }
+
+    @Test
+    public void rebuildDataSetCountersWhileRecordsAreWritten() throws Exception {
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            statement.executeUpdate("UPDATE record SET status = 'DELETED' WHERE dataset = 1 AND localId = 'local1_1_1'");
+            final CompletableFuture<Integer> rebuild = CompletableFuture.supplyAsync(() ->
+                    env().getPersistenceContext().run(() -> tickleRepo.rebuildDataSetCounters()), executor);
+            // Gives the rebuild time to run into the uncommitted write
+            Thread.sleep(500);
+            conn.commit();
+            rebuild.get(30, TimeUnit.SECONDS);
+        }
+        assertThat("deviating datasets after rebuild", tickleRepo.verifyDataSetCounters().isEmpty(), is(true));
+        assertThat("deleted", tickleRepo.getDataSetSummaryByDataSetId(1).getDeleted(), is(2L));
+    }
+
     @Test
     public void getDataSetsBySubmitter() {
         List<DataSet> datasets = tickleRepo.getDataSetsBySubmitter(123458);
@@ -468,6 +814,33 @@ public class TickleRepoIT extends JpaIntegrationTest {
         assertThat(datasets.get(0).getAgencyId(), is(123458));
     }
 
+    @Test
+    public void lookupBatch_readOnlyLookupsOfCompletedBatchesAreCached() {
+        final Batch byId = new Batch().withId(3);
+        final Batch byKey = new Batch().withBatchKey(1000003);
+        tickleRepo.lookupBatch(byId, true);
+        tickleRepo.lookupBatch(byId, true);
+        assertThat("open batch hits", tickleRepo.getBatchCacheStatistics().getHits(), is(0L));
+        assertThat("open batch not cached", tickleRepo.getBatchCacheStatistics().getSize(), is(0));
+
+        final Batch batch = env().getEntityManager().find(Batch.class, 3)
+                .withType(Batch.Type.INCREMENTAL);
+        env().getPersistenceContext().run(() -> tickleRepo.closeBatch(batch));
+
+        tickleRepo.lookupBatch(byId, false);
+        assertThat("writable lookups not cached", tickleRepo.getBatchCacheStatistics().getSize(), is(0));
+
+        tickleRepo.lookupBatch(byId, true);
+        final Batch cached = tickleRepo.lookupBatch(byId, true).orElse(null);
+        assertThat("cached batch", cached.getId(), is(3));
+        assertThat("cached batch time of completion", cached.getTimeOfCompletion(), is(notNullValue()));
+        assertThat("cached by key", tickleRepo.lookupBatch(byKey, true).map(Batch::getId).orElse(null), is(3));
+        assertThat("hits", tickleRepo.getBatchCacheStatistics().getHits(), is(2L));
+
+        tickleRepo.lookupBatch(byId, false);
+        assertThat("writable lookups bypass cache", tickleRepo.getBatchCacheStatistics().getHits(), is(2L));
+    }
+
     @Test
     public void lookupDataSetById_notPersisted_returnsOptionalEmpty() {
         Optional<DataSet> dataSetOptional = tickleRepo.lookupDataSet(new DataSet().withId(42));
@@ -504,6 +877,28 @@ public class TickleRepoIT extends JpaIntegrationTest {
         assertThat("dataSet displayName",persisted.getDisplayName(), is("displayname1"));
     }
 
+    @Test
+    public void lookupDataSet_servedFromCacheUntilDataSetTableChanges() {
+        assertThat("first lookup", tickleRepo.lookupDataSet(new DataSet().withName("dataset1"))
+                .map(DataSet::getId).orElse(null), is(1));
+        assertThat("second lookup", tickleRepo.lookupDataSet(new DataSet().withName("dataset1"))
+                .map(DataSet::getId).orElse(null), is(1));
+        CacheStatistics statistics = tickleRepo.getDataSetCacheStatistics();
+        assertThat("hits", statistics.getHits(), is(1L));
+        assertThat("misses", statistics.getMisses(), is(1L));
+
+        assertThat("managed", env().getEntityManager().contains(
+                tickleRepo.lookupDataSet(new DataSet().withName("dataset1")).orElse(null)), is(true));
+
+        env().getPersistenceContext().run(() -> env().getEntityManager().find(DataSet.class, 1)
+                .withName("dataset1_renamed"));
+        env().getEntityManager().clear();
+        assertThat("lookup after change", tickleRepo.lookupDataSet(new DataSet().withId(1))
+                .map(DataSet::getName).orElse(null), is("dataset1_renamed"));
+        assertThat("lookup by name after change", tickleRepo.lookupDataSet(new DataSet().withName("dataset1"))
+                .isPresent(), is(false));
+    }
+
     @Test
     public void lookupDataSetByRecordLocalId_SingleDataSet() {
         Record record = new Record().withLocalId("local1_1_3");
@@ -654,12 +1049,761 @@ public class TickleRepoIT extends JpaIntegrationTest {
         });
     }
 
+    @Test
+    public void harvestRecordsInDataSet() {
+        final DataSet dataSet = new DataSet()
+                .withId(2);
+
+        final List<Integer> harvested = new ArrayList<>();
+        String resumeToken = null;
+        HarvestPage page;
+        do {
+            final String currentToken = resumeToken;
+            page = env().getPersistenceContext().run(() ->
+                    tickleRepo.harvestRecordsInDataSet(dataSet, currentToken, 6));
+            for (Record record : page.getRecords()) {
+                assertThat("record dataset", record.getDataset(), is(2));
+                harvested.add(record.getId());
+            }
+            resumeToken = page.getResumeToken();
+        } while (!page.isLastPage());
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int id = 11; id <= 30; id++) {
+            expected.add(id);
+        }
+        assertThat("records harvested in ID order", harvested, is(expected));
+    }
+
+    @Test
+    public void harvestRecordsInDataSet_resumesAfterNewTransaction() {
+        final DataSet dataSet = new DataSet()
+                .withId(1);
+
+        final HarvestPage first = env().getPersistenceContext().run(() ->
+                tickleRepo.harvestRecordsInDataSet(dataSet, null, 4));
+        assertThat("first page size", first.getRecords().size(), is(4));
+        assertThat("first page is last", first.isLastPage(), is(false));
+
+        final HarvestPage second = env().getPersistenceContext().run(() ->
+                tickleRepo.harvestRecordsInDataSet(dataSet, first.getResumeToken(), 100));
+        assertThat("second page size", second.getRecords().size(), is(6));
+        assertThat("second page first record", second.getRecords().get(0).getId(), is(5));
+        assertThat("second page is last", second.isLastPage(), is(true));
+
+        final HarvestPage exhausted = env().getPersistenceContext().run(() ->
+                tickleRepo.harvestRecordsInDataSet(dataSet, second.getResumeToken(), 100));
+        assertThat("exhausted page size", exhausted.getRecords().size(), is(0));
+        assertThat("exhausted page token", exhausted.getResumeToken(), is(second.getResumeToken()));
+    }
+
+    @Test
+    public void exportRecordsInDataSet_idRanges() throws Exception {
+        final Map<Integer, List<Integer>> partitions = new ConcurrentHashMap<>();
+        final long exported = tickleRepo.exportRecordsInDataSet(new DataSet().withId(2),
+                new ParallelExport().withPartitions(3).withFetchSize(2).withExecutor(executor),
+                (partition, record) -> partitions.computeIfAbsent(partition, k -> new ArrayList<>()).add(record.getId()))
+                .get(30, TimeUnit.SECONDS);
+
+        assertThat("records exported", exported, is(20L));
+        assertThat("number of partitions", partitions.size(), is(3));
+        assertThat("partition 0", partitions.get(0), is(Arrays.asList(11, 12, 13, 14, 15, 16, 17)));
+        assertThat("partition 1", partitions.get(1), is(Arrays.asList(18, 19, 20, 21, 22, 23, 24)));
+        assertThat("partition 2", partitions.get(2), is(Arrays.asList(25, 26, 27, 28, 29, 30)));
+    }
+
+    @Test
+    public void exportRecordsInDataSet_localIdHash() throws Exception {
+        final Map<Integer, List<Integer>> partitions = new ConcurrentHashMap<>();
+        final Map<Integer, Long> completed = new ConcurrentHashMap<>();
+        final long exported = tickleRepo.exportRecordsInDataSet(new DataSet().withId(2),
+                new ParallelExport().withPartitions(4).withPartitioning(ParallelExport.Partitioning.LOCAL_ID_HASH)
+                        .withExecutor(executor),
+                new RecordSink() {
+                    @Override
+                    public void accept(int partition, Record record) {
+                        partitions.computeIfAbsent(partition, k -> new ArrayList<>()).add(record.getId());
+                    }
+
+                    @Override
+                    public void partitionCompleted(int partition, long records) {
+                        completed.put(partition, records);
+                    }
+                })
+                .get(30, TimeUnit.SECONDS);
+
+        assertThat("records exported", exported, is(20L));
+        assertThat("all partitions completed", completed.size(), is(4));
+        final Set<Integer> ids = new HashSet<>();
+        for (Map.Entry<Integer, List<Integer>> partition : partitions.entrySet()) {
+            final List<Integer> sorted = new ArrayList<>(partition.getValue());
+            Collections.sort(sorted);
+            assertThat("partition " + partition.getKey() + " ordered", partition.getValue(), is(sorted));
+            assertThat("partition " + partition.getKey() + " completed",
+                    completed.get(partition.getKey()), is((long) sorted.size()));
+            ids.addAll(sorted);
+        }
+        assertThat("number of distinct records", ids.size(), is(20));
+    }
+
+    @Test
+    public void exportRecordsInDataSet_noExecutor() {
+        try {
+            tickleRepo.exportRecordsInDataSet(new DataSet().withId(2), new ParallelExport(),
+                    (partition, record) -> {});
+            fail("No exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void exportRecordsInDataSet_sinkFails() throws Exception {
+        try {
+            tickleRepo.exportRecordsInDataSet(new DataSet().withId(2),
+                    new ParallelExport().withPartitions(2).withExecutor(executor),
+                    (partition, record) -> {
+                        throw new IllegalStateException("sink failure");
+                    })
+                    .get(30, TimeUnit.SECONDS);
+            fail("No exception thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IllegalStateException, is(true));
+        }
+    }
+
+    @Test
+    public void exportRecordsInDataSet_executorRejects() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        final Executor rejecting = task -> {
+            if (submitted.getAndIncrement() > 0) {
+                throw new RejectedExecutionException("rejected");
+            }
+            executor.execute(task);
+        };
+        try {
+            tickleRepo.exportRecordsInDataSet(new DataSet().withId(2),
+                    new ParallelExport().withPartitions(2).withExecutor(rejecting),
+                    (partition, record) -> {})
+                    .get(30, TimeUnit.SECONDS);
+            fail("No exception thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof RejectedExecutionException, is(true));
+        }
+        assertThat("open snapshot transactions", getNumberOfIdleTransactions(), is(0));
+    }
+
+    @Test
+    public void ingestRecords() {
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+
+        final List<Record> records = new ArrayList<>();
+        records.add(new Record().withLocalId("local1_1_1").withTrackingId("t1_1_1_v2")
+                .withStatus(Record.Status.ACTIVE).withContent("data1_1_1".getBytes()).withChecksum("chksum1_1_1"));
+        records.add(new Record().withLocalId("local1_1_2").withTrackingId("t1_1_2_v2")
+                .withStatus(Record.Status.ACTIVE).withContent("superseded".getBytes()).withChecksum("superseded"));
+        records.add(new Record().withLocalId("local1_1_2").withTrackingId("t1_1_2_v3")
+                .withStatus(Record.Status.ACTIVE).withContent("data1_1_2_v3".getBytes()).withChecksum("chksum1_1_2_v3"));
+        records.add(new Record().withLocalId("local1_1_11").withTrackingId("t1_1_11")
+                .withStatus(Record.Status.ACTIVE).withContent("data1_1_11".getBytes()).withChecksum("chksum1_1_11"));
+
+        final IngestResult result = env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, records));
+        assertThat("inserted", result.getInserted(), is(1L));
+        assertThat("updated", result.getUpdated(), is(1L));
+        assertThat("unchanged", result.getUnchanged(), is(1L));
+
+        final Record unchanged = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_1")).orElse(null);
+        assertThat("unchanged record batch", unchanged.getBatch(), is(1));
+        assertThat("unchanged record tracking ID", unchanged.getTrackingId(), is("t1_1_1_v2"));
+
+        final Record updated = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_2")).orElse(null);
+        assertThat("updated record batch", updated.getBatch(), is(batch.getId()));
+        assertThat("updated record checksum", updated.getChecksum(), is("chksum1_1_2_v3"));
+        assertThat("updated record content", new String(updated.getContent()), is("data1_1_2_v3"));
+        assertThat("updated record time of last modification", updated.getTimeOfLastModification(), is(notNullValue()));
+
+        final Record inserted = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_11")).orElse(null);
+        assertThat("inserted record batch", inserted.getBatch(), is(batch.getId()));
+        assertThat("inserted record content", new String(inserted.getContent()), is("data1_1_11"));
+    }
+
+    @Test
+    public void contentIsStoredEncodedByDataSetCodec() {
+        final byte[] content = "data1_1_2 data1_1_2 data1_1_2 data1_1_2 data1_1_2".getBytes();
+        env().getPersistenceContext().run(() -> env().getEntityManager().find(DataSet.class, 1)
+                .withContentCodec(ContentCodec.DEFLATE));
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+
+        final List<Record> records = new ArrayList<>();
+        records.add(new Record().withLocalId("local1_1_2").withTrackingId("t1_1_2")
+                .withStatus(Record.Status.ACTIVE).withContent(content).withChecksum("chksum1_1_2_v2"));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, records));
+
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(batch)) {
+                final Record record = rs.iterator().next();
+                assertThat("content codec", record.getContentCodec(), is(ContentCodec.DEFLATE));
+                assertThat("stored content", record.getStoredContent(), is(not(content)));
+                assertThat("content", record.getContent(), is(content));
+            }
+        });
+
+        final Record ingested = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_2")).orElse(null);
+        assertThat("ingested record content", ingested.getContent(), is(content));
+
+        final Record uncompressed = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_3")).orElse(null);
+        assertThat("uncompressed record content codec", uncompressed.getContentCodec(), is(ContentCodec.NONE));
+        assertThat("uncompressed record content", new String(uncompressed.getContent()), is("data1_1_3"));
+
+        env().getPersistenceContext().run(() -> uncompressed.withContent(content, ContentCodec.DEFLATE));
+        env().getEntityManager().clear();
+        final Record updated = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_3")).orElse(null);
+        assertThat("updated record content codec", updated.getContentCodec(), is(ContentCodec.DEFLATE));
+        assertThat("updated record content", updated.getContent(), is(content));
+    }
+
+    @Test
+    public void contentWrittenThroughJpaIsEncodedByDataSetCodec() throws SQLException {
+        final byte[] content = "data1_1_11 data1_1_11 data1_1_11 data1_1_11".getBytes();
+        env().getPersistenceContext().run(() -> env().getEntityManager().find(DataSet.class, 1)
+                .withContentCodec(ContentCodec.DEFLATE));
+
+        env().getPersistenceContext().run(() -> env().getEntityManager().persist(new Record()
+                .withDataset(1)
+                .withBatch(1)
+                .withLocalId("local1_1_11")
+                .withTrackingId("t1_1_11")
+                .withStatus(Record.Status.ACTIVE)
+                .withContent(content)
+                .withChecksum("chksum1_1_11")));
+        env().getPersistenceContext().run(() -> tickleRepo.lookupRecord(
+                new Record().withDataset(1).withLocalId("local1_1_4")).orElse(null)
+                .withContent(content));
+
+        assertThat("records stored encoded", getNumberOfRowsIn("record WHERE dataset = 1" +
+                " AND localId IN ('local1_1_4', 'local1_1_11') AND contentCodec = 'DEFLATE'"), is(2L));
+        env().getEntityManager().clear();
+        final Record persisted = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_11")).orElse(null);
+        assertThat("persisted record content", persisted.getContent(), is(content));
+        final Record updated = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_4")).orElse(null);
+        assertThat("updated record content", updated.getContent(), is(content));
+    }
+
+    @Test
+    public void identicalContentIsStoredOnce() throws SQLException {
+        final byte[] content = "shared content".getBytes();
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+
+        final List<Record> records = new ArrayList<>();
+        records.add(new Record().withLocalId("shared1").withTrackingId("t_shared1")
+                .withStatus(Record.Status.ACTIVE).withContent(content).withChecksum("chksum_shared"));
+        records.add(new Record().withLocalId("shared2").withTrackingId("t_shared2")
+                .withStatus(Record.Status.ACTIVE).withContent(content).withChecksum("chksum_shared"));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, records));
+        assertThat("refcount after ingest", getRecordContentRefcount(content), is(2L));
+
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(batch)) {
+                for (Record record : rs) {
+                    assertThat("content of " + record.getLocalId(), record.getContent(), is(content));
+                }
+            }
+        });
+        final Record shared = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("shared1")).orElse(null);
+        assertThat("looked up record content", shared.getContent(), is(content));
+
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, records));
+        assertThat("refcount after unchanged ingest", getRecordContentRefcount(content), is(2L));
+
+        final List<Record> modified = Collections.singletonList(new Record().withLocalId("shared2")
+                .withTrackingId("t_shared2").withStatus(Record.Status.ACTIVE)
+                .withContent("modified content".getBytes()).withChecksum("chksum_modified"));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, modified));
+        assertThat("refcount after modification", getRecordContentRefcount(content), is(1L));
+
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DELETE FROM record WHERE localId = 'shared1'");
+        }
+        assertThat("refcount after delete", getRecordContentRefcount(content), is(0L));
+
+        assertThat("number of purged", env().getPersistenceContext().run(() ->
+                tickleRepo.purgeRecordContent()), is(1));
+        assertThat("refcount after purge", getRecordContentRefcount(content), is(nullValue()));
+    }
+
+    @Test
+    public void recordHeadersInBatch() {
+        final Batch batch = new Batch().withId(2);
+        final List<RecordHeader> headers = new ArrayList<>();
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<RecordHeader> rs = tickleRepo.getRecordHeadersInBatch(batch)) {
+                for (RecordHeader header : rs) {
+                    headers.add(header);
+                }
+            }
+        });
+        assertThat("number of headers", headers.size(), is(10));
+        final RecordHeader header = headers.get(0);
+        assertThat("id", header.getId(), is(11));
+        assertThat("batch", header.getBatch(), is(2));
+        assertThat("dataset", header.getDataset(), is(2));
+        assertThat("localId", header.getLocalId(), is("local2_2_1"));
+        assertThat("status", header.getStatus(), is(Record.Status.RESET));
+        assertThat("checksum", header.getChecksum(), is("chksum2_2_1"));
+        assertThat("timeOfCreation", header.getTimeOfCreation(), is(notNullValue()));
+
+        assertThat("content loaded by id", env().getPersistenceContext().run(() ->
+                tickleRepo.getRecordContent(header.getId()).map(String::new).orElse(null)), is("data2_2_1"));
+        assertThat("content of unknown record", env().getPersistenceContext().run(() ->
+                tickleRepo.getRecordContent(4242).isPresent()), is(false));
+    }
+
+    @Test
+    public void recordHeadersInDataSet() {
+        final DataSet dataSet = new DataSet().withId(2);
+        final long numberOfHeaders = env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<RecordHeader> rs = tickleRepo.getRecordHeadersInDataSet(dataSet)) {
+                return rs.stream().count();
+            }
+        });
+        assertThat(numberOfHeaders, is(20L));
+    }
+
+    @Test
+    public void batchCompletionsAreDeliveredToSubscribers() throws InterruptedException {
+        final BlockingQueue<Batch> completed = new LinkedBlockingQueue<>();
+        try (BatchCompletionNotifier notifier = tickleRepo.subscribeToBatchCompletions(
+                new Batch().withId(2).withDataset(2), completed::add)) {
+            final Batch otherDataSetBatch = env().getEntityManager().find(Batch.class, 4);
+            env().getPersistenceContext().run(() -> tickleRepo.closeBatch(otherDataSetBatch));
+            final Batch batch = env().getEntityManager().find(Batch.class, 3)
+                    .withType(Batch.Type.INCREMENTAL);
+            env().getPersistenceContext().run(() -> tickleRepo.closeBatch(batch));
+
+            final Batch delivered = completed.poll(10, TimeUnit.SECONDS);
+            assertThat("delivered", delivered, is(notNullValue()));
+            assertThat("delivered batch", delivered.getId(), is(3));
+            assertThat("delivered batch dataset", delivered.getDataset(), is(2));
+            assertThat("delivered batch time of completion", delivered.getTimeOfCompletion(), is(notNullValue()));
+            assertThat("other deliveries", completed.poll(1, TimeUnit.SECONDS), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void batchCompletionsWithoutDataSetSurviveMalformedNotifications() throws InterruptedException, SQLException {
+        final BlockingQueue<Batch> completed = new LinkedBlockingQueue<>();
+        try (BatchCompletionNotifier notifier = new BatchCompletionNotifier(env().getDatasource())
+                .subscribe(completed::add)
+                .subscribe(2, completed::add)
+                .start()) {
+            try (Connection conn = env().getDatasource().getConnection();
+                 Statement statement = conn.createStatement()) {
+                statement.execute("SELECT pg_notify('batch_completed', 'malformed')");
+                statement.executeUpdate("INSERT INTO batch (batchKey, type, timeOfCompletion)" +
+                        " VALUES (1000005, 'INCREMENTAL', now())");
+            }
+
+            final Batch delivered = completed.poll(10, TimeUnit.SECONDS);
+            assertThat("delivered", delivered, is(notNullValue()));
+            assertThat("delivered batch key", delivered.getBatchKey(), is(1000005));
+            assertThat("other deliveries", completed.poll(1, TimeUnit.SECONDS), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void exportRecordsInBatch() throws IOException {
+        final ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        final long numberOfExported = env().getPersistenceContext().run(() ->
+                tickleRepo.exportRecordsInBatch(new Batch().withId(2), exported));
+        assertThat("number of exported", numberOfExported, is(10L));
+
+        final List<Record> expected = new ArrayList<>();
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(new Batch().withId(2))) {
+                for (Record record : rs) {
+                    expected.add(record);
+                }
+            }
+        });
+
+        final List<Record> records;
+        try (RecordExportReader reader = new RecordExportReader(new ByteArrayInputStream(exported.toByteArray()))) {
+            records = reader.stream().collect(Collectors.toList());
+        }
+        assertThat("number of records read", records.size(), is(10));
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            final Record expectedRecord = expected.get(i);
+            assertThat("record " + i, record.toString(), is(expectedRecord.toString()));
+            assertThat("record " + i + " content", record.getContent(), is(expectedRecord.getContent()));
+            assertThat("record " + i + " checksum", record.getChecksum(), is(expectedRecord.getChecksum()));
+        }
+    }
+
+    @Test
+    public void exportRecordsInDataSet() throws IOException {
+        final ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        final long numberOfExported = env().getPersistenceContext().run(() ->
+                tickleRepo.exportRecordsInDataSet(new DataSet().withId(2), Channels.newChannel(exported)));
+        assertThat("number of exported", numberOfExported, is(20L));
+        try (RecordExportReader reader = new RecordExportReader(new ByteArrayInputStream(exported.toByteArray()))) {
+            assertThat("number of records read", reader.stream().count(), is(20L));
+        }
+    }
+
+    @Test
+    public void lookupRecords_manyLocalIds() {
+        final List<String> localIds = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            localIds.add("unknown" + i);
+        }
+        localIds.set(3, "local2_2_1");
+        localIds.set(1003, "local2_2_2");
+        localIds.add("local3_2_1");
+        localIds.add("local2_2_1");
+
+        final List<Record> records = env().getPersistenceContext().run(() -> tickleRepo.lookupRecords(2, localIds));
+        final List<String> found = records.stream()
+                .map(Record::getLocalId)
+                .sorted()
+                .collect(Collectors.toList());
+        assertThat(found, is(Arrays.asList("local2_2_1", "local2_2_2", "local3_2_1")));
+        for (Record record : records) {
+            assertThat("managed " + record.getLocalId(), env().getEntityManager().contains(record), is(true));
+            assertThat("content of " + record.getLocalId(), new String(record.getContent()),
+                    is(record.getLocalId().replace("local", "data")));
+        }
+    }
+
+    @Test
+    public void getRecordsByLocalIds_inOrderOfLocalIds() {
+        final List<String> localIds = Arrays.asList("local3_2_1", "unknown", "local2_2_2", "local2_2_1", "local1_1_1",
+                "local2_2_2");
+        final List<Record> records = new ArrayList<>();
+        env().getPersistenceContext().run(() -> {
+            try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsByLocalIds(2, localIds)) {
+                rs.forEach(records::add);
+            }
+        });
+        assertThat(records.stream().map(Record::getLocalId).collect(Collectors.toList()),
+                is(Arrays.asList("local3_2_1", "local2_2_2", "local2_2_1")));
+        assertThat(new String(records.get(2).getContent()), is("data2_2_1"));
+    }
+
+    @Test
+    public void resultSetReusesTranslatedSqlOfNamedQuery() {
+        TickleRepo.NAMED_QUERY_SQL.remove(Record.GET_RECORDS_IN_BATCH_QUERY_NAME);
+        final List<Integer> recordIds = new ArrayList<>();
+        env().getPersistenceContext().run(() -> {
+            for (int batch = 1; batch <= 3; batch++) {
+                try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(new Batch().withId(batch))) {
+                    rs.forEach(record -> recordIds.add(record.getId()));
+                }
+            }
+        });
+        assertThat("cached", TickleRepo.NAMED_QUERY_SQL.containsKey(Record.GET_RECORDS_IN_BATCH_QUERY_NAME), is(true));
+        assertThat("number of records", recordIds.size(), is(30));
+        assertThat("last record", recordIds.get(29), is(30));
+    }
+
+    @Test
+    public void openRecordContent() {
+        final byte[] content = new byte[RecordContentInputStream.DEFAULT_SLICE_SIZE * 2 + 100];
+        new Random(42).nextBytes(content);
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, Arrays.asList(
+                new Record().withLocalId("large").withTrackingId("t_large")
+                        .withStatus(Record.Status.ACTIVE).withContent(content).withChecksum("chksum_large"),
+                new Record().withLocalId("large_deflated").withTrackingId("t_large_deflated")
+                        .withStatus(Record.Status.ACTIVE).withContent(content, ContentCodec.DEFLATE)
+                        .withChecksum("chksum_large_deflated"))));
+
+        env().getPersistenceContext().run(() -> {
+            final List<byte[]> contents = new ArrayList<>();
+            try (TickleRepo.ResultSet<RecordHeader> rs = tickleRepo.getRecordHeadersInBatch(batch)) {
+                for (RecordHeader header : rs) {
+                    try (InputStream in = tickleRepo.openRecordContent(header.getId()).orElseThrow()) {
+                        contents.add(in.readAllBytes());
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            assertThat("number of records", contents.size(), is(2));
+            assertThat("content", Arrays.equals(contents.get(0), content), is(true));
+            assertThat("deflated content", Arrays.equals(contents.get(1), content), is(true));
+            assertThat("no record", tickleRepo.openRecordContent(4242).isPresent(), is(false));
+        });
+    }
+
+    @Test
+    public void openRecordContent_recordUpdatedWhileReading() throws SQLException {
+        final byte[] content = new byte[RecordContentInputStream.DEFAULT_SLICE_SIZE * 2 + 100];
+        new Random(42).nextBytes(content);
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000005)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, Collections.singletonList(
+                new Record().withLocalId("large").withTrackingId("t_large")
+                        .withStatus(Record.Status.ACTIVE).withContent(content).withChecksum("chksum_large"))));
+        final Record record = env().getPersistenceContext().run(() -> tickleRepo.lookupRecord(
+                new Record().withDataset(1).withLocalId("large")).orElseThrow());
+
+        env().getPersistenceContext().run(() -> {
+            try (InputStream in = tickleRepo.openRecordContent(record.getId()).orElseThrow()) {
+                final byte[] read = new byte[content.length];
+                final int firstSlice = in.readNBytes(read, 0, RecordContentInputStream.DEFAULT_SLICE_SIZE);
+
+                try (Connection conn = env().getDatasource().getConnection();
+                     Statement statement = conn.createStatement()) {
+                    assertThat("updated", statement.executeUpdate(
+                            "UPDATE record SET content = 'replaced' WHERE id = " + record.getId()), is(1));
+                    // Content no longer referenced is skipped by the purge while being read
+                    statement.executeUpdate("DELETE FROM record_content WHERE digest IN (" +
+                            "SELECT digest FROM record_content WHERE refcount <= 0 FOR UPDATE SKIP LOCKED)");
+                }
+
+                final int rest = in.readNBytes(read, firstSlice, content.length - firstSlice);
+                assertThat("bytes read", firstSlice + rest, is(content.length));
+                assertThat("end of stream", in.read(), is(-1));
+                assertThat("content as opened", Arrays.equals(read, content), is(true));
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThat("content released", getRecordContentRefcount(content), is(0L));
+    }
+
+    @Test
+    public void moveRecordContent() throws SQLException {
+        final byte[] content = "legacy content".getBytes();
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement()) {
+            // Writes content inline as it was before content was shared
+            statement.execute("SET session_replication_role = replica");
+            statement.executeUpdate("UPDATE record SET content = 'legacy content', contentDigest = NULL" +
+                    " WHERE dataset = 1 AND localId IN ('local1_1_1', 'local1_1_2')");
+            statement.execute("SET session_replication_role = DEFAULT");
+        }
+        final DataSet dataSet = new DataSet().withId(1);
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate().withChunkSize(4);
+        assertThat("moved", tickleRepo.moveRecordContent(dataSet, chunkedUpdate), is(2L));
+        assertThat("records referencing content", getNumberOfRowsIn("record WHERE dataset = 1" +
+                " AND content IS NULL AND contentDigest = md5('legacy content'::bytea)"), is(2L));
+        assertThat("refcount", getRecordContentRefcount(content), is(2L));
+        final Record record = tickleRepo.lookupRecord(new Record().withDataset(1).withLocalId("local1_1_1")).orElse(null);
+        assertThat("record content", record.getContent(), is(content));
+        assertThat("moved again", tickleRepo.moveRecordContent(dataSet, chunkedUpdate), is(0L));
+    }
+
+    @Test
+    public void purgeDeletedRecords() throws SQLException {
+        env().getPersistenceContext().run(() -> env().getEntityManager()
+                .createNativeQuery("UPDATE record SET timeOfLastModification = now() - interval '40 days'" +
+                        " WHERE dataset = 1 AND localId IN ('local1_1_9', 'local1_1_10')")
+                .executeUpdate());
+        final DataSet dataSet = new DataSet().withId(1);
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate().withChunkSize(4);
+        assertThat("no retention", tickleRepo.purgeDeletedRecords(
+                dataSet, TickleRepo.PurgeMode.STRIP_CONTENT, chunkedUpdate), is(0L));
+
+        dataSet.withDeletedRecordRetentionDays(30);
+        final List<ChunkedUpdate.Progress> progress = new ArrayList<>();
+        assertThat("stripped", tickleRepo.purgeDeletedRecords(dataSet, TickleRepo.PurgeMode.STRIP_CONTENT,
+                chunkedUpdate.withProgressListener(progress::add)), is(1L));
+        assertThat("number of chunks", progress.size(), is(3));
+        assertThat("tombstone", getNumberOfRowsIn("record WHERE localId = 'local1_1_10'" +
+                " AND status = 'DELETED' AND contentDigest = md5(''::bytea)"), is(1L));
+        assertThat("content released", getRecordContentRefcount("data1_1_10".getBytes()), is(0L));
+        assertThat("stripped again", tickleRepo.purgeDeletedRecords(
+                dataSet, TickleRepo.PurgeMode.STRIP_CONTENT, chunkedUpdate), is(0L));
+
+        assertThat("deleted", tickleRepo.purgeDeletedRecords(
+                dataSet, TickleRepo.PurgeMode.DELETE, chunkedUpdate), is(1L));
+        assertThat("records in dataset", getNumberOfRowsIn("record WHERE dataset = 1"), is(9L));
+        assertThat("size of dataset", tickleRepo.sizeOf(dataSet), is(9));
+    }
+
+    @Test
+    public void diffChecksums() {
+        final List<Record> records = Arrays.asList(
+                new Record().withLocalId("local1_1_2").withChecksum("chksum1_1_2"),
+                new Record().withLocalId("new1").withChecksum("chksum_new1"),
+                new Record().withLocalId("local1_1_1").withChecksum("changed"),
+                new Record().withLocalId("local1_1_3").withChecksum("chksum1_1_3"),
+                new Record().withLocalId("local2_2_1").withChecksum("chksum2_2_1"));
+        final ChecksumDiff diff = env().getPersistenceContext().run(() -> tickleRepo.diffChecksums(1, records));
+        assertThat("new", new ArrayList<>(diff.getNewLocalIds()), is(Arrays.asList("new1", "local2_2_1")));
+        assertThat("changed", new ArrayList<>(diff.getChangedLocalIds()), is(Collections.singletonList("local1_1_1")));
+        assertThat("unchanged", new ArrayList<>(diff.getUnchangedLocalIds()),
+                is(Arrays.asList("local1_1_2", "local1_1_3")));
+    }
+
+    @Test
+    public void diffChecksums_inChunks() {
+        final List<Record> records = new ArrayList<>();
+        for (int i = 0; i < TickleRepo.DIFF_CHUNK_SIZE + 10; i++) {
+            records.add(new Record().withLocalId("new" + i).withChecksum("chksum" + i));
+        }
+        records.add(new Record().withLocalId("local1_1_1").withChecksum("chksum1_1_1"));
+        // Repeated local ID in later chunk, last checksum wins
+        records.add(0, new Record().withLocalId("local1_1_2").withChecksum("chksum1_1_2"));
+        records.add(new Record().withLocalId("local1_1_2").withChecksum("changed"));
+
+        final ChecksumDiff diff = env().getPersistenceContext().run(() -> tickleRepo.diffChecksums(1, records));
+        assertThat("new", diff.getNewLocalIds().size(), is(TickleRepo.DIFF_CHUNK_SIZE + 10));
+        assertThat("changed", diff.getChangedLocalIds(), is(Collections.singleton("local1_1_2")));
+        assertThat("unchanged", diff.getUnchangedLocalIds(), is(Collections.singleton("local1_1_1")));
+    }
+
+    @Test
+    public void publishRecordsInDataSet()throws ExecutionException, InterruptedException, TimeoutException {
+        final List<Record> records = new ArrayList<>();
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        tickleRepo.publishRecordsInDataSet(new DataSet().withId(2), executor).subscribe(new Flow.Subscriber<Record>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(3);
+            }
+
+            @Override
+            public void onNext(Record record) {
+                records.add(record);
+                if (records.size() % 3 == 0) {
+                    subscription.request(3);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completion.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completion.complete(null);
+            }
+        });
+        completion.get(10, TimeUnit.SECONDS);
+
+        assertThat("number of records", records.size(), is(20));
+        assertThat("first record", records.get(0).getLocalId(), is("local2_2_1"));
+        assertThat("content", new String(records.get(0).getContent()), is("data2_2_1"));
+        assertThat("last record", records.get(19).getId(), is(30));
+    }
+
+    @Test
+    public void publishRecordsInBatch_cancelled() throws InterruptedException {
+        final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        tickleRepo.publishRecordsInBatch(new Batch().withId(2), executor).subscribe(new Flow.Subscriber<Record>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(5);
+            }
+
+            @Override
+            public void onNext(Record record) {
+                signals.add(record);
+                if (signals.size() == 2) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                signals.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+
+        assertThat("first signal", signals.poll(10, TimeUnit.SECONDS) instanceof Record, is(true));
+        assertThat("second signal", signals.poll(10, TimeUnit.SECONDS) instanceof Record, is(true));
+        assertThat("no signals after cancel", signals.poll(500, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
+
+    @Test
+    public void asyncTickleRepo()throws ExecutionException, InterruptedException, SQLException {
+        try (AsyncTickleRepo asyncTickleRepo = new AsyncTickleRepo(
+                env().getEntityManager().getEntityManagerFactory(), env().getDatasource(), 2)) {
+            final CompletableFuture<Optional<Record>> record = asyncTickleRepo.lookupRecord(
+                    new Record().withDataset(1).withLocalId("local1_1_1"));
+            final CompletableFuture<DataSetSummary> summary = asyncTickleRepo.getDataSetSummaryByDataSetId(1);
+            final CompletableFuture<Batch> batch = asyncTickleRepo.createBatch(new Batch()
+                            .withBatchKey(1000005)
+                            .withType(Batch.Type.INCREMENTAL)
+                            .withDataset(3))
+                    .thenCompose(asyncTickleRepo::closeBatch);
+            final CompletableFuture<Void> failure = asyncTickleRepo.submit(tickleRepo -> {
+                tickleRepo.createBatch(new Batch()
+                        .withBatchKey(1000006)
+                        .withType(Batch.Type.INCREMENTAL)
+                        .withDataset(3));
+                throw new IllegalStateException("rolled back");
+            });
+
+            assertThat("record", new String(record.get().orElseThrow().getContent()), is("data1_1_1"));
+            assertThat("summary active", summary.get().getActive(), is(9L));
+            assertThat("summary deleted", summary.get().getDeleted(), is(1L));
+            assertThat("batch completed", batch.get().getTimeOfCompletion(), is(notNullValue()));
+            try {
+                failure.get();
+                fail("no exception thrown");
+            } catch (ExecutionException e) {
+                assertThat("failure", e.getCause() instanceof IllegalStateException, is(true));
+            }
+        }
+        assertThat("committed batch", getNumberOfRowsIn("batch WHERE batchKey = 1000005"), is(1L));
+        assertThat("rolled back batch", getNumberOfRowsIn("batch WHERE batchKey = 1000006"), is(0L));
+    }
+
     @Test
     public void estimateSizeOf_dataset() {
         final DataSet dataSet = new DataSet().withId(1);
         assertThat(tickleRepo.estimateSizeOf(dataSet), is(10));
     }
 
+    @Test
+    public void estimateSizeOf_followsIngestedAndDeletedRecords() {
+        final DataSet dataSet = new DataSet().withId(1);
+        final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                .withBatchKey(1000004)
+                .withType(Batch.Type.INCREMENTAL)
+                .withDataset(1)));
+        env().getPersistenceContext().run(() -> tickleRepo.ingestRecords(batch, Collections.singletonList(
+                new Record().withLocalId("local1_1_11").withTrackingId("t1_1_11")
+                        .withStatus(Record.Status.ACTIVE).withContent("data1_1_11".getBytes()).withChecksum("chksum1_1_11"))));
+        assertThat("after ingest", tickleRepo.estimateSizeOf(dataSet), is(11));
+
+        env().getPersistenceContext().run(() -> env().getEntityManager()
+                .createNativeQuery("DELETE FROM record WHERE dataset = 1 AND status = 'DELETED'")
+                .executeUpdate());
+        assertThat("after delete", tickleRepo.estimateSizeOf(dataSet), is(10));
+        assertThat("exact", tickleRepo.sizeOf(dataSet), is(10));
+    }
+
     @Test
     public void deleteOutdatedRecords() {
         final Set<Integer> expectedRecords = new HashSet<>();
@@ -710,6 +1854,148 @@ public class TickleRepoIT extends JpaIntegrationTest {
                 numberOfRecordsInBatch, is(expectedRecords.size()));
     }
 
+    @Test
+    public void operationsAreMeasured() {
+        final List<String> measurements = new ArrayList<>();
+        TickleRepo.setMetrics(new TickleRepoMetrics() {
+            @Override
+            public void operationCompleted(String operation, long durationInNanos) {
+                measurements.add(operation);
+            }
+
+            @Override
+            public void recordsUpdated(String update, int dataset, long records) {
+                measurements.add(update + " " + dataset + " " + records);
+            }
+
+            @Override
+            public void recordsStreamed(String operation, long records, long contentBytes) {
+                measurements.add(operation + " " + records + " " + contentBytes);
+            }
+
+            @Override
+            public void cursorClosed(String operation, long lifetimeInNanos) {
+                measurements.add("cursor " + operation);
+            }
+        });
+        try {
+            final Batch batch = env().getPersistenceContext().run(() -> tickleRepo.createBatch(new Batch()
+                    .withBatchKey(1000004)
+                    .withType(Batch.Type.TOTAL)
+                    .withDataset(1)));
+            env().getPersistenceContext().run(() -> {
+                try (TickleRepo.ResultSet<Record> rs = tickleRepo.getRecordsInBatch(new Batch().withId(1))) {
+                    rs.forEach(record -> {});
+                }
+            });
+            env().getPersistenceContext().run(() -> tickleRepo.abortBatch(batch));
+        } finally {
+            TickleRepo.setMetrics(TickleRepoMetrics.NONE);
+        }
+
+        assertThat(measurements, is(Arrays.asList(
+                "mark 1 9",
+                "createBatch",
+                "getRecordsInBatch",
+                "cursor getRecordsInBatch",
+                "getRecordsInBatch 10 91",
+                "undoMark 1 9",
+                "sweep 1 0",
+                "abortBatch")));
+    }
+
+    @Test
+    public void dataSetPartition() throws SQLException {
+        env().getPersistenceContext().run(() -> tickleRepo.partitionRecordTable());
+        assertThat("record table is partitioned", isRecordTablePartitioned(), is(true));
+        assertThat("partitioned again", env().getPersistenceContext().run(() ->
+                tickleRepo.partitionRecordTable()), is(false));
+
+        final DataSet dataSet = new DataSet().withId(2);
+        final int size = tickleRepo.sizeOf(dataSet);
+        final DataSetSummary summary = tickleRepo.getDataSetSummaryByDataSetId(2);
+
+        final String partition = env().getPersistenceContext().run(() -> tickleRepo.createDataSetPartition(dataSet));
+        try {
+            assertThat("partition", partition, is("record_dataset_2"));
+            assertThat("records in partition", getNumberOfRowsIn(partition), is((long) size));
+            assertThat("size of dataset", tickleRepo.sizeOf(dataSet), is(size));
+            assertThat("summary", tickleRepo.getDataSetSummaryByDataSetId(2).getSum(), is(summary.getSum()));
+            assertThat("lookup", env().getPersistenceContext().run(() -> tickleRepo.lookupRecord(
+                    new Record().withDataset(2).withLocalId("local2_2_1"))).isPresent(), is(true));
+            assertThat("content refcount", getRecordContentRefcount(
+                    "data2_2_1".getBytes()), is(1L));
+        } finally {
+            env().getPersistenceContext().run(() -> tickleRepo.dropDataSetPartition(dataSet));
+        }
+
+        assertThat("size of dataset after drop", tickleRepo.sizeOf(dataSet), is(0));
+        assertThat("summary after drop", tickleRepo.getDataSetSummaryByDataSetId(2), is(nullValue()));
+        assertThat("content refcount after drop", getRecordContentRefcount(
+                "data2_2_1".getBytes()), is(0L));
+        assertThat("other datasets untouched", tickleRepo.sizeOf(new DataSet().withId(1)), is(10));
+    }
+
+    @Test
+    public void partitionedRecordIdIsUniqueInDataSet() throws SQLException {
+        env().getPersistenceContext().run(() -> tickleRepo.partitionRecordTable());
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement()) {
+            try {
+                statement.executeUpdate("INSERT INTO record (id, dataset, localId, trackingId, status, content, contentDigest, checksum)" +
+                        " SELECT id, dataset, 'duplicate', trackingId, status, content, contentDigest, checksum" +
+                        " FROM record WHERE dataset = 1 AND localId = 'local1_1_1'");
+                fail("No exception thrown");
+            } catch (SQLException e) {
+                assertThat("unique violation", e.getSQLState(), is("23505"));
+            }
+            // IDs are only kept unique across datasets by drawing them from record_id_seq
+            assertThat("inserted", statement.executeUpdate(
+                    "INSERT INTO record (id, dataset, localId, trackingId, status, content, contentDigest, checksum)" +
+                    " SELECT id, 2, 'duplicate', trackingId, status, content, contentDigest, checksum" +
+                    " FROM record WHERE dataset = 1 AND localId = 'local1_1_1'"), is(1));
+        }
+    }
+
+    private boolean isRecordTablePartitioned() throws SQLException {
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement();
+             java.sql.ResultSet resultSet = statement.executeQuery(
+                     "SELECT count(*) FROM pg_partitioned_table WHERE partrelid = 'record'::regclass")) {
+            return resultSet.next() && resultSet.getInt(1) > 0;
+        }
+    }
+
+    private long getNumberOfRowsIn(String table) throws SQLException {
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement();
+             java.sql.ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private int getNumberOfIdleTransactions() throws SQLException {
+        try (Connection conn = env().getDatasource().getConnection();
+             Statement statement = conn.createStatement();
+             java.sql.ResultSet resultSet = statement.executeQuery(
+                     "SELECT count(*) FROM pg_stat_activity WHERE state LIKE 'idle in transaction%'")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private Long getRecordContentRefcount(byte[] content) throws SQLException {
+        try (Connection conn = env().getDatasource().getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     "SELECT refcount FROM record_content WHERE data = ?")) {
+            statement.setBytes(1, content);
+            try (java.sql.ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        }
+    }
+
     private void migrateDatabase(DataSource dataSource) {
         final TickleRepoDatabaseMigrator dbMigrator = new TickleRepoDatabaseMigrator(dataSource);
         dbMigrator.migrate();
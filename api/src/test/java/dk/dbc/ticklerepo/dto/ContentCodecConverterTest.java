@@ -0,0 +1,49 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import dk.dbc.commons.testutil.Assert;
+import org.junit.Test;
+import org.postgresql.util.PGobject;
+
+import static dk.dbc.commons.testutil.Assert.isThrowing;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ContentCodecConverterTest {
+
+    private final ContentCodecConverter converter = new ContentCodecConverter();
+
+    @Test
+    public void convertToDatabaseColumn_contentCodecArgIsNull_returnsNullValuedDatabaseObject() {
+        final Object pgObject = converter.convertToDatabaseColumn(null);
+        assertThat("PGobject", pgObject, is(notNullValue()));
+        assertThat("PGobject type", ((PGobject) pgObject).getType(), is("content_codec"));
+        assertThat("PGobject value", ((PGobject) pgObject).getValue(), is(nullValue()));
+    }
+
+    @Test
+    public void convertToDatabaseColumn() {
+        final Object pgObject = converter.convertToDatabaseColumn(ContentCodec.DEFLATE);
+        assertThat("PGobject", pgObject, is(notNullValue()));
+        assertThat("PGobject type", ((PGobject) pgObject).getType(), is("content_codec"));
+        assertThat("PGobject value", ((PGobject) pgObject).getValue(), is(ContentCodec.DEFLATE.name()));
+    }
+
+    @Test
+    public void convertToEntityAttribute_dbValueArgIsNull_throws() {
+        Assert.assertThat(() -> converter.convertToEntityAttribute(null), isThrowing(IllegalArgumentException.class));
+    }
+
+    @Test
+    public void convertToEntityAttribute() {
+        assertThat("NONE", converter.convertToEntityAttribute("NONE"), is(ContentCodec.NONE));
+        assertThat("DEFLATE", converter.convertToEntityAttribute("DEFLATE"), is(ContentCodec.DEFLATE));
+        assertThat("UNKNOWN", converter.convertToEntityAttribute("UNKNOWN"), is(nullValue()));
+    }
+}
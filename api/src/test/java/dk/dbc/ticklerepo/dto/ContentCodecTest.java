@@ -0,0 +1,69 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.dto;
+
+import dk.dbc.commons.testutil.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static dk.dbc.commons.testutil.Assert.isThrowing;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ContentCodecTest {
+    private final byte[] content = ("<record>" + "<datafield tag=\"245\">title</datafield>".repeat(100) + "</record>")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void none() {
+        assertThat("encode", ContentCodec.NONE.encode(content), is(content));
+        assertThat("decode", ContentCodec.NONE.decode(content), is(content));
+    }
+
+    @Test
+    public void deflate_roundTrip() {
+        final byte[] encoded = ContentCodec.DEFLATE.encode(content);
+        assertThat("compressed", encoded.length < content.length / 5, is(true));
+        assertThat("decoded", ContentCodec.DEFLATE.decode(encoded), is(content));
+    }
+
+    @Test
+    public void deflate_decodeStream() throws IOException {
+        final byte[] encoded = ContentCodec.DEFLATE.encode(content);
+        try (InputStream decoded = ContentCodec.DEFLATE.decodeStream(new ByteArrayInputStream(encoded))) {
+            assertThat(decoded.readAllBytes(), is(content));
+        }
+    }
+
+    @Test
+    public void deflate_emptyContent() {
+        assertThat(ContentCodec.DEFLATE.decode(ContentCodec.DEFLATE.encode(new byte[0])), is(new byte[0]));
+    }
+
+    @Test
+    public void deflate_null() {
+        assertThat("encode", ContentCodec.DEFLATE.encode(null), is(nullValue()));
+        assertThat("decode", ContentCodec.DEFLATE.decode(null), is(nullValue()));
+    }
+
+    @Test
+    public void deflate_decodeUncompressedContent_throws() {
+        Assert.assertThat(() -> ContentCodec.DEFLATE.decode(content), isThrowing(IllegalStateException.class));
+    }
+
+    @Test
+    public void deflate_decodeTruncatedContent_throws() {
+        final byte[] encoded = ContentCodec.DEFLATE.encode(content);
+        final byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        Assert.assertThat(() -> ContentCodec.DEFLATE.decode(truncated), isThrowing(IllegalStateException.class));
+    }
+}
@@ -57,4 +57,38 @@ public class RecordTest {
         assertThat("Record batch", record.getBatch(), is(1));
         assertThat("Record checksum", record.getChecksum(), is("chksum1"));
     }
+
+    @Test
+    public void contentIsStoredEncoded() {
+        final byte[] content = "content content content content".getBytes();
+
+        final Record record = new Record()
+                .withContent(content, ContentCodec.DEFLATE);
+
+        assertThat("Record content codec", record.getContentCodec(), is(ContentCodec.DEFLATE));
+        assertThat("Record stored content", record.getStoredContent(), is(ContentCodec.DEFLATE.encode(content)));
+        assertThat("Record content", record.getContent(), is(content));
+    }
+
+    @Test
+    public void storedContentIsDecodedOnAccess() {
+        final byte[] content = "content content content content".getBytes();
+
+        final Record record = new Record()
+                .withStoredContent(ContentCodec.DEFLATE.encode(content), ContentCodec.DEFLATE);
+
+        assertThat("Record content", record.getContent(), is(content));
+    }
+
+    @Test
+    public void contentIsStoredAsIs() {
+        final byte[] content = "content".getBytes();
+
+        final Record record = new Record()
+                .withContent(content);
+
+        assertThat("Record content codec", record.getContentCodec(), is(ContentCodec.NONE));
+        assertThat("Record stored content", record.getStoredContent(), is(content));
+        assertThat("Record content", record.getContent(), is(content));
+    }
 }
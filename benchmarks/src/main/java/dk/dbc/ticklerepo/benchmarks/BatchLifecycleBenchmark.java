@@ -0,0 +1,105 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.IngestResult;
+import dk.dbc.ticklerepo.dto.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch lifecycle operations touching every record of the dataset.
+ * <p>
+ * Single threaded, since concurrent batches of the same dataset
+ * would interfere with each other.
+ * </p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(1)
+public class BatchLifecycleBenchmark {
+    private static final AtomicInteger BATCH_KEYS = new AtomicInteger(1000);
+
+    @State(Scope.Thread)
+    public static class ActiveRecords {
+        /* Reactivates all records, undoing the sweep of the previous invocation */
+        @Setup(Level.Invocation)
+        public void reactivate(TickleRepoDatabase database) throws SQLException {
+            try (Connection connection = database.getDataSource().getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE record SET status = 'ACTIVE' WHERE status <> 'ACTIVE'");
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class UnchangedRecords {
+        List<Record> records;
+
+        @Setup(Level.Trial)
+        public void read(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+            records = session.inTransaction(() -> session.tickleRepo.harvestRecordsInDataSet(
+                    database.getDataSet(), null, 1000).getRecords());
+        }
+    }
+
+    /**
+     * Marks all records of the dataset by a TOTAL batch, then undoes the marks by aborting it
+     */
+    @Benchmark
+    public Batch markAndUndoMark(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+        final Batch batch = session.inTransaction(() -> session.tickleRepo.createBatch(newTotalBatch(database)));
+        return session.inTransaction(() -> session.tickleRepo.abortBatch(batch));
+    }
+
+    /**
+     * Marks all records of the dataset by a TOTAL batch, then sweeps them all
+     */
+    @Benchmark
+    public Batch markAndSweep(TickleRepoDatabase database, TickleRepoSession session, ActiveRecords activeRecords)
+            throws Exception {
+        final Batch batch = session.inTransaction(() -> session.tickleRepo.createBatch(newTotalBatch(database)));
+        return session.inTransaction(() -> session.tickleRepo.closeBatch(batch));
+    }
+
+    /**
+     * Ingests 1000 records already in the dataset
+     */
+    @Benchmark
+    public IngestResult ingestUnchangedRecords(TickleRepoDatabase database, TickleRepoSession session,
+                                               UnchangedRecords unchangedRecords) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.ingestRecords(
+                database.getBatch(), unchangedRecords.records));
+    }
+
+    private static Batch newTotalBatch(TickleRepoDatabase database) {
+        return new Batch()
+                .withBatchKey(BATCH_KEYS.incrementAndGet())
+                .withDataset(database.getDataSet().getId())
+                .withType(Batch.Type.TOTAL);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.DataSet;
+import dk.dbc.ticklerepo.dto.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of single records, batches and datasets at random
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LookupBenchmark {
+    private static final int LOCAL_IDS_PER_LOOKUP = 100;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        int recordIndex;
+        List<String> localIds;
+
+        @Setup(Level.Invocation)
+        public void next(TickleRepoDatabase database) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            recordIndex = random.nextInt(database.records);
+            localIds = new ArrayList<>(LOCAL_IDS_PER_LOOKUP);
+            for (int i = 0; i < LOCAL_IDS_PER_LOOKUP; i++) {
+                localIds.add(TickleRepoDatabase.localId(random.nextInt(database.records)));
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<Record> lookupRecordByLocalId(TickleRepoDatabase database, TickleRepoSession session,
+                                                  Keys keys) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.lookupRecord(new Record()
+                .withDataset(database.getDataSet().getId())
+                .withLocalId(TickleRepoDatabase.localId(keys.recordIndex))));
+    }
+
+    @Benchmark
+    public Optional<Record> lookupRecordById(TickleRepoSession session, Keys keys) throws Exception {
+        // Record IDs are assigned from 1 in order of ingest
+        return session.inTransaction(() -> session.tickleRepo.lookupRecord(new Record()
+                .withId(keys.recordIndex + 1)));
+    }
+
+    @Benchmark
+    public List<Record> lookupRecords(TickleRepoDatabase database, TickleRepoSession session,
+                                      Keys keys) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.lookupRecords(
+                database.getDataSet().getId(), keys.localIds));
+    }
+
+    @Benchmark
+    public Optional<byte[]> getRecordContent(TickleRepoSession session, Keys keys) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.getRecordContent(keys.recordIndex + 1));
+    }
+
+    @Benchmark
+    public Optional<DataSet> lookupDataSetByName(TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.lookupDataSet(
+                new DataSet().withName(TickleRepoDatabase.DATASET_NAME)));
+    }
+
+    @Benchmark
+    public List<DataSet> getDataSetsBySubmitter(TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.getDataSetsBySubmitter(TickleRepoDatabase.AGENCY_ID));
+    }
+
+    @Benchmark
+    public Optional<Batch> lookupBatchReadOnly(TickleRepoDatabase database, TickleRepoSession session)
+            throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.lookupBatch(
+                new Batch().withId(database.getBatch().getId()), true));
+    }
+
+    @Benchmark
+    public Optional<Batch> getNextBatch(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.getNextBatch(
+                new Batch().withId(0).withDataset(database.getDataSet().getId())));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import dk.dbc.ticklerepo.TickleRepo;
+import dk.dbc.ticklerepo.dto.HarvestPage;
+import dk.dbc.ticklerepo.dto.Record;
+import dk.dbc.ticklerepo.dto.RecordHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iteration of an entire dataset, one operation per full pass
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResultSetBenchmark {
+    @Benchmark
+    public long getRecordsInDataSet(TickleRepoDatabase database, TickleRepoSession session, Blackhole blackhole)
+            throws Exception {
+        return session.inTransaction(() -> {
+            long records = 0;
+            try (TickleRepo.ResultSet<Record> rs = session.tickleRepo.getRecordsInDataSet(database.getDataSet())) {
+                for (Record record : rs) {
+                    blackhole.consume(record.getContent());
+                    records++;
+                }
+            }
+            return records;
+        });
+    }
+
+    @Benchmark
+    public long getRecordsInBatch(TickleRepoDatabase database, TickleRepoSession session, Blackhole blackhole)
+            throws Exception {
+        return session.inTransaction(() -> {
+            long records = 0;
+            try (TickleRepo.ResultSet<Record> rs = session.tickleRepo.getRecordsInBatch(database.getBatch())) {
+                for (Record record : rs) {
+                    blackhole.consume(record.getContent());
+                    records++;
+                }
+            }
+            return records;
+        });
+    }
+
+    @Benchmark
+    public long getRecordHeadersInDataSet(TickleRepoDatabase database, TickleRepoSession session, Blackhole blackhole)
+            throws Exception {
+        return session.inTransaction(() -> {
+            long records = 0;
+            try (TickleRepo.ResultSet<RecordHeader> rs = session.tickleRepo.getRecordHeadersInDataSet(database.getDataSet())) {
+                for (RecordHeader header : rs) {
+                    blackhole.consume(header);
+                    records++;
+                }
+            }
+            return records;
+        });
+    }
+
+    @Benchmark
+    public long harvestRecordsInDataSet(TickleRepoDatabase database, TickleRepoSession session, Blackhole blackhole)
+            throws Exception {
+        long records = 0;
+        String resumeToken = null;
+        HarvestPage page;
+        do {
+            final String token = resumeToken;
+            page = session.inTransaction(() ->
+                    session.tickleRepo.harvestRecordsInDataSet(database.getDataSet(), token, 1000));
+            blackhole.consume(page.getRecords());
+            records += page.getRecords().size();
+            resumeToken = page.getResumeToken();
+        } while (!page.isLastPage());
+        return records;
+    }
+
+    @Benchmark
+    public long exportRecordsInDataSet(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.exportRecordsInDataSet(database.getDataSet(),
+                OutputStream.nullOutputStream()));
+    }
+}
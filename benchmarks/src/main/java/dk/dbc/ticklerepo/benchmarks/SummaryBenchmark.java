@@ -0,0 +1,50 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import dk.dbc.ticklerepo.dto.DataSetSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dataset summaries and sizes
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SummaryBenchmark {
+    @Benchmark
+    public List<DataSetSummary> getDataSetSummary(TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.getDataSetSummary());
+    }
+
+    @Benchmark
+    public DataSetSummary getDataSetSummaryByDataSetId(TickleRepoDatabase database, TickleRepoSession session)
+            throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.getDataSetSummaryByDataSetId(
+                database.getDataSet().getId()));
+    }
+
+    @Benchmark
+    public int estimateSizeOf(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.estimateSizeOf(database.getDataSet()));
+    }
+
+    @Benchmark
+    public int sizeOf(TickleRepoDatabase database, TickleRepoSession session) throws Exception {
+        return session.inTransaction(() -> session.tickleRepo.sizeOf(database.getDataSet()));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import dk.dbc.ticklerepo.TickleRepo;
+import dk.dbc.ticklerepo.TickleRepoDatabaseMigrator;
+import dk.dbc.ticklerepo.dto.Batch;
+import dk.dbc.ticklerepo.dto.DataSet;
+import dk.dbc.ticklerepo.dto.Record;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Embedded PostgreSQL database holding a synthetic dataset, shared by all
+ * benchmark threads
+ * <p>
+ * The size of the dataset is given by the records and contentSize parameters,
+ * for example {@code -p records=100000 -p contentSize=4096}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class TickleRepoDatabase {
+    static final String DATASET_NAME = "benchmark";
+    static final int AGENCY_ID = 870970;
+    private static final int INGEST_CHUNK_SIZE = 10000;
+
+    @Param({"10000"})
+    public int records;
+
+    @Param({"1024"})
+    public int contentSize;
+
+    private EmbeddedPostgres postgres;
+    private EntityManagerFactory entityManagerFactory;
+    private DataSet dataSet;
+    private Batch batch;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        postgres = EmbeddedPostgres.start();
+        new TickleRepoDatabaseMigrator(getDataSource()).migrate();
+        entityManagerFactory = Persistence.createEntityManagerFactory("tickleRepoIT", Map.of(
+                "jakarta.persistence.jdbc.driver", "org.postgresql.Driver",
+                "jakarta.persistence.jdbc.url", postgres.getJdbcUrl("postgres", "postgres"),
+                "jakarta.persistence.jdbc.user", "postgres",
+                "eclipselink.logging.level", "WARNING"));
+        populate();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        if (entityManagerFactory != null) {
+            entityManagerFactory.close();
+        }
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    DataSource getDataSource() {
+        return postgres.getPostgresDatabase();
+    }
+
+    EntityManager createEntityManager() {
+        return entityManagerFactory.createEntityManager();
+    }
+
+    DataSet getDataSet() {
+        return dataSet;
+    }
+
+    /**
+     * @return the completed batch holding all records of the dataset
+     */
+    Batch getBatch() {
+        return batch;
+    }
+
+    static String localId(int i) {
+        return "local" + i;
+    }
+
+    private void populate() {
+        final EntityManager entityManager = createEntityManager();
+        final TickleRepo tickleRepo = new TickleRepo(entityManager, getDataSource());
+        try {
+            entityManager.getTransaction().begin();
+            dataSet = tickleRepo.createDataSet(new DataSet()
+                    .withName(DATASET_NAME)
+                    .withDisplayName(DATASET_NAME)
+                    .withAgencyId(AGENCY_ID));
+            batch = tickleRepo.createBatch(new Batch()
+                    .withBatchKey(1)
+                    .withDataset(dataSet.getId())
+                    .withType(Batch.Type.INCREMENTAL));
+            entityManager.getTransaction().commit();
+
+            final Random random = new Random(42);
+            for (int from = 0; from < records; from += INGEST_CHUNK_SIZE) {
+                final List<Record> chunk = new ArrayList<>(INGEST_CHUNK_SIZE);
+                for (int i = from; i < Math.min(from + INGEST_CHUNK_SIZE, records); i++) {
+                    chunk.add(new Record()
+                            .withLocalId(localId(i))
+                            .withTrackingId("tracking" + i)
+                            .withStatus(Record.Status.ACTIVE)
+                            .withContent(content(random))
+                            .withChecksum("checksum" + i));
+                }
+                entityManager.getTransaction().begin();
+                tickleRepo.ingestRecords(batch, chunk);
+                entityManager.getTransaction().commit();
+            }
+
+            entityManager.getTransaction().begin();
+            batch = tickleRepo.closeBatch(entityManager.merge(batch));
+            entityManager.getTransaction().commit();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /* Text like content, compressible and distinct per record */
+    private byte[] content(Random random) {
+        final StringBuilder content = new StringBuilder(contentSize);
+        while (content.length() < contentSize) {
+            content.append("<field code=\"").append(random.nextInt(1000)).append("\">")
+                    .append(Long.toHexString(random.nextLong()))
+                    .append("</field>");
+        }
+        content.setLength(contentSize);
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
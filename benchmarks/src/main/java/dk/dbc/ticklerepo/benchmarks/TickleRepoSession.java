@@ -0,0 +1,60 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.ticklerepo.benchmarks;
+
+import dk.dbc.ticklerepo.TickleRepo;
+import jakarta.persistence.EntityManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Callable;
+
+/**
+ * TickleRepo on an entity manager of its own per benchmark thread
+ */
+@State(Scope.Thread)
+public class TickleRepoSession {
+    EntityManager entityManager;
+    TickleRepo tickleRepo;
+
+    @Setup(Level.Trial)
+    public void open(TickleRepoDatabase database) {
+        entityManager = database.createEntityManager();
+        tickleRepo = new TickleRepo(entityManager, database.getDataSource());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        entityManager.close();
+    }
+
+    /**
+     * Calls given operation in a transaction, which is committed.
+     * The persistence context is cleared afterwards, so that managed
+     * entities do not pile up across invocations.
+     *
+     * @param operation operation
+     * @param <T>       type of result
+     * @return result of operation
+     * @throws Exception if the operation fails
+     */
+    <T> T inTransaction(Callable<T> operation) throws Exception {
+        entityManager.getTransaction().begin();
+        try {
+            final T result = operation.call();
+            entityManager.getTransaction().commit();
+            return result;
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            entityManager.clear();
+        }
+    }
+}